@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.github.parboiled1.grappa.backport.buffers.CharSequenceInputBuffer;
+import com.github.parboiled1.grappa.backport.buffers.LegacyInputBufferAdapter;
+import com.github.parboiled1.grappa.backport.buffers.LineCountingStrategy;
+import com.github.parboiled1.grappa.backport.tracer.ProfilingListener;
+import com.github.parboiled1.grappa.stack.DefaultValueStack;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import org.parboiled.support.ParsingResult;
+import org.parboiled.support.ValueStack;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A parse runner for many inputs, parsed in parallel
+ *
+ * <p>Inputs are parsed on an {@link Executor} of your choosing (for instance,
+ * a {@link java.util.concurrent.ForkJoinPool}), using the {@link
+ * EventBasedParseRunnerFactory#getRunner() runners} of an {@link
+ * EventBasedParseRunnerFactory}; each worker thread therefore has its own
+ * runner and listeners, which it reuses for all the inputs it parses.</p>
+ *
+ * <p>Results are handed to a {@link BatchResultHandler} in the calling thread,
+ * either in the order of the inputs (the default) or as soon as they are
+ * available (see {@link #withUnorderedResults()}). At most a given number of
+ * inputs are being parsed, or waiting to be handled, at any given time (see
+ * {@link #withMaxInFlight(int)}), so that inputs can be read lazily.</p>
+ *
+ * <p>Inputs are not copied, and lines are only counted if line information is
+ * requested (see {@link LineCountingStrategy#lazy()}). Since runners are
+ * reused, the value stack and parse errors of each result are copies of those
+ * of the runner.</p>
+ *
+ * <p>Statistics collected by per worker listeners can be aggregated once the
+ * batch is done; for instance, with {@link ProfilingListener}s:</p>
+ *
+ * <pre>
+ *     final List&lt;ProfilingListener&lt;Foo&gt;&gt; listeners
+ *         = new CopyOnWriteArrayList&lt;&gt;();
+ *     final EventBasedParseRunnerFactory&lt;Foo&gt; factory
+ *         = new EventBasedParseRunnerFactory&lt;Foo&gt;(rules)
+ *     {
+ *         &#64;Override
+ *         protected void configure(
+ *             final EventBasedParseRunner&lt;Foo&gt; runner)
+ *         {
+ *             final ProfilingListener&lt;Foo&gt; listener
+ *                 = new ProfilingListener&lt;&gt;();
+ *             listeners.add(listener);
+ *             runner.registerListener(listener);
+ *         }
+ *     };
+ *
+ *     new BatchParseRunner&lt;&gt;(factory, pool).run(inputs, handler);
+ *
+ *     final ProfilingListener&lt;Foo&gt; total
+ *         = new ProfilingListener&lt;&gt;();
+ *     for (final ProfilingListener&lt;Foo&gt; listener: listeners)
+ *         total.merge(listener);
+ * </pre>
+ *
+ * <p>Note that runners are confined to the threads of the executor, and are
+ * reused by later batches on the same threads.</p>
+ *
+ * @param <V> type parameter of the parser
+ */
+@ParametersAreNonnullByDefault
+public final class BatchParseRunner<V>
+{
+    private static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final EventBasedParseRunnerFactory<V> factory;
+    private final Executor executor;
+
+    private LineCountingStrategy strategy = LineCountingStrategy.lazy();
+    private boolean ordered = true;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    public BatchParseRunner(final EventBasedParseRunnerFactory<V> factory,
+        final Executor executor)
+    {
+        this.factory = Preconditions.checkNotNull(factory);
+        this.executor = Preconditions.checkNotNull(executor);
+    }
+
+    /**
+     * Hand results over as soon as they are available
+     *
+     * <p>The index passed to the {@link BatchResultHandler} is still the index
+     * of the input.</p>
+     *
+     * @return this
+     */
+    public BatchParseRunner<V> withUnorderedResults()
+    {
+        ordered = false;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of inputs being parsed or waiting to be handled
+     *
+     * <p>The default is 256.</p>
+     *
+     * @param maxInFlight the maximum number of inputs
+     * @return this
+     *
+     * @throws IllegalArgumentException argument is not strictly positive
+     */
+    public BatchParseRunner<V> withMaxInFlight(final int maxInFlight)
+    {
+        Preconditions.checkArgument(maxInFlight > 0,
+            "maximum number of inputs in flight must be strictly positive");
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Set the line counting strategy of input buffers
+     *
+     * <p>The default is {@link LineCountingStrategy#lazy()}.</p>
+     *
+     * @param strategy the strategy
+     * @return this
+     */
+    public BatchParseRunner<V> withLineCountingStrategy(
+        final LineCountingStrategy strategy)
+    {
+        this.strategy = Preconditions.checkNotNull(strategy);
+        return this;
+    }
+
+    /**
+     * Parse all inputs
+     *
+     * <p>If the handler throws an exception, or if the executor rejects a
+     * parsing run, inputs which have not been parsed yet are not parsed, and
+     * the exception is thrown back to the caller.</p>
+     *
+     * @param inputs the inputs
+     * @param handler the handler of results
+     * @throws InterruptedException interrupted while waiting for a result
+     */
+    public void run(final Iterable<? extends CharSequence> inputs,
+        final BatchResultHandler<V> handler)
+        throws InterruptedException
+    {
+        new Batch(handler).run(inputs.iterator());
+    }
+
+    /**
+     * Parse all inputs and return the results
+     *
+     * <p>Results are returned in the order in which they were handed over (see
+     * {@link #withUnorderedResults()}). If a parsing run throws an exception,
+     * this exception is thrown back to the caller.</p>
+     *
+     * @param inputs the inputs
+     * @return the list of results
+     * @throws InterruptedException interrupted while waiting for a result
+     */
+    public List<ParsingResult<V>> run(
+        final Iterable<? extends CharSequence> inputs)
+        throws InterruptedException
+    {
+        final List<ParsingResult<V>> ret = new ArrayList<>();
+
+        run(inputs, new BatchResultHandler<V>()
+        {
+            @Override
+            public void handleResult(final long index,
+                final ParsingResult<V> result)
+            {
+                ret.add(result);
+            }
+
+            @Override
+            public void handleFailure(final long index,
+                final RuntimeException exception)
+            {
+                throw exception;
+            }
+        });
+
+        return ret;
+    }
+
+    /*
+     * The state of one call to run()
+     *
+     * In ordered mode, results are taken from the oldest task in flight; in
+     * unordered mode, tasks put themselves in a queue when done.
+     */
+    private final class Batch
+    {
+        private final BatchResultHandler<V> handler;
+        private final Set<ParseTask> inFlight = new LinkedHashSet<>();
+        @Nullable
+        private final BlockingQueue<ParseTask> completed;
+
+        private Batch(final BatchResultHandler<V> handler)
+        {
+            this.handler = Preconditions.checkNotNull(handler);
+            completed = ordered ? null : new LinkedBlockingQueue<ParseTask>();
+        }
+
+        private void run(final Iterator<? extends CharSequence> inputs)
+            throws InterruptedException
+        {
+            long index = 0L;
+            ParseTask task;
+
+            try {
+                while (inputs.hasNext()) {
+                    if (inFlight.size() >= maxInFlight)
+                        handleNext();
+                    task = new ParseTask(index++, inputs.next(), completed);
+                    inFlight.add(task);
+                    executor.execute(task);
+                }
+                while (!inFlight.isEmpty())
+                    handleNext();
+            } finally {
+                for (final ParseTask pending: inFlight)
+                    pending.cancel(false);
+            }
+        }
+
+        private void handleNext()
+            throws InterruptedException
+        {
+            final ParseTask task = completed == null
+                ? inFlight.iterator().next() : completed.take();
+            final ParsingResult<V> result;
+
+            try {
+                result = task.get();
+            } catch (ExecutionException e) {
+                inFlight.remove(task);
+                final Throwable cause = e.getCause();
+                Throwables.propagateIfInstanceOf(cause, Error.class);
+                // Parse tasks do not throw checked exceptions
+                handler.handleFailure(task.index, (RuntimeException) cause);
+                return;
+            }
+
+            inFlight.remove(task);
+            handler.handleResult(task.index, result);
+        }
+    }
+
+    private final class ParseTask
+        extends FutureTask<ParsingResult<V>>
+    {
+        private final long index;
+        @Nullable
+        private final BlockingQueue<ParseTask> completed;
+
+        private ParseTask(final long index, final CharSequence input,
+            @Nullable final BlockingQueue<ParseTask> completed)
+        {
+            super(new Callable<ParsingResult<V>>()
+            {
+                @Override
+                public ParsingResult<V> call()
+                {
+                    final CharSequenceInputBuffer buffer
+                        = new CharSequenceInputBuffer(input, strategy);
+                    return detach(factory.getRunner()
+                        .run(new LegacyInputBufferAdapter(buffer)));
+                }
+            });
+            this.index = index;
+            this.completed = completed;
+        }
+
+        @Override
+        protected void done()
+        {
+            if (completed != null)
+                completed.add(this);
+        }
+    }
+
+    /*
+     * Copy the value stack and parse errors of a result, which belong to the
+     * runner and are therefore reset by its next run
+     */
+    private static <V> ParsingResult<V> detach(final ParsingResult<V> result)
+    {
+        // Stacks iterate from the top; push values from the bottom
+        final ValueStack<V> valueStack = new DefaultValueStack<>();
+        for (final V value: Lists.reverse(Lists.newArrayList(
+            result.valueStack)))
+            valueStack.push(value);
+        return new ParsingResult<>(result.matched, result.parseTreeRoot,
+            valueStack, Lists.newArrayList(result.parseErrors),
+            result.inputBuffer);
+    }
+}
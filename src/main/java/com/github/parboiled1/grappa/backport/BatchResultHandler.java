@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import org.parboiled.support.ParsingResult;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A handler of the results of a {@link BatchParseRunner}
+ *
+ * <p>Methods of this interface are called from the thread which called {@link
+ * BatchParseRunner#run(Iterable, BatchResultHandler)}, one at a time; they
+ * therefore need not be thread safe. Throwing an exception from either method
+ * stops the batch.</p>
+ *
+ * @param <V> type parameter of the parser
+ */
+@ParametersAreNonnullByDefault
+public interface BatchResultHandler<V>
+{
+    /**
+     * Handle the result of a parsing run
+     *
+     * @param index the index of the input (counting from 0)
+     * @param result the result
+     */
+    void handleResult(long index, ParsingResult<V> result);
+
+    /**
+     * Handle a parsing run which threw an exception
+     *
+     * <p>This is for instance the case of parsing runs {@link
+     * ParseAbortedException aborted} because of a timeout.</p>
+     *
+     * @param index the index of the input (counting from 0)
+     * @param exception the exception thrown by the run
+     */
+    void handleFailure(long index, RuntimeException exception);
+}
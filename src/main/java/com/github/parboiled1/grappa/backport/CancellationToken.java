@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A token used to cancel parsing runs from another thread
+ *
+ * <p>Once cancelled, a token remains cancelled; all parsing runs using it are
+ * aborted with a {@link ParseAbortedException}. Create a new token for each
+ * group of parsing runs which should be cancelled together.</p>
+ *
+ * @see EventBasedParseRunner#withCancellationToken(CancellationToken)
+ */
+@ThreadSafe
+public final class CancellationToken
+{
+    private volatile boolean cancelled = false;
+
+    /**
+     * Cancel all parsing runs using this token
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * Tell whether this token has been cancelled
+     *
+     * @return true if cancelled
+     */
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+}
@@ -17,11 +17,15 @@
 package com.github.parboiled1.grappa.backport;
 
 import com.github.parboiled1.grappa.backport.events.MatchContextEvent;
+import com.github.parboiled1.grappa.backport.events.MatchEventPool;
 import com.github.parboiled1.grappa.backport.events.MatchFailureEvent;
 import com.github.parboiled1.grappa.backport.events.MatchSuccessEvent;
+import com.github.parboiled1.grappa.backport.events.MemoHitEvent;
 import com.github.parboiled1.grappa.backport.events.PostParseEvent;
 import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
 import com.github.parboiled1.grappa.backport.events.PreParseEvent;
+import com.github.parboiled1.grappa.backport.type.GrammarIndex;
+import com.github.parboiled1.grappa.backport.type.MatcherType;
 import com.google.common.base.Preconditions;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionContext;
@@ -37,6 +41,8 @@ import org.parboiled.parserunners.ParseRunner;
 import org.parboiled.support.ParsingResult;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link ParseRunner} implementation with hooks at different points in the
@@ -77,6 +83,31 @@ import javax.annotation.ParametersAreNonnullByDefault;
  *     runner.run(someInput);
  * </pre>
  *
+ * <p>By default, events are dispatched to listeners using an {@link EventBus}.
+ * If you call {@link #withDirectDispatch()} before running, listeners are
+ * instead stored in a plain array and their methods are called directly; this
+ * avoids the cost of the bus (subscriber lookup, dispatch queues) for each and
+ * every match. In both modes, an exception thrown by a listener aborts the
+ * parsing run.</p>
+ *
+ * <p>You can also make this runner {@link #withReusableEvents() reuse match
+ * events} instead of allocating new ones for each match. Combined with direct
+ * dispatch, this makes the matching path allocation free; see {@link
+ * MatchContextEvent} for the constraints this places on listeners.</p>
+ *
+ * <p>Finally, this runner can {@link #withMemoization(int) memoize} the results
+ * of matchers which do not run actions, so that they are not run again when
+ * the parser backtracks to the same position.</p>
+ *
+ * <p>A parsing run can be limited in {@link #withTimeout(long, TimeUnit) time}
+ * or {@link #withMaxMatches(long) number of matches}, and {@link
+ * #withCancellationToken(CancellationToken) cancelled} from another thread; in
+ * these cases, it is aborted with a {@link ParseAbortedException}.</p>
+ *
+ * <p>A runner can be used for any number of parsing runs, but it is not thread
+ * safe; see {@link EventBasedParseRunnerFactory} to share a rule between
+ * threads.</p>
+ *
  * @see ParseRunnerListener
  * @see EventBus
  */
@@ -89,6 +120,12 @@ public class EventBasedParseRunner<V>
     // TODO: does it need to be volatile?
     private volatile Throwable throwable = null;
 
+    /*
+     * Budgets are checked on every match; the time and the cancellation token
+     * are only checked every BUDGET_CHECK_INTERVAL matches
+     */
+    private static final long BUDGET_CHECK_INTERVAL = 1024L;
+
     private final EventBus bus = new EventBus(new SubscriberExceptionHandler()
     {
         @Override
@@ -99,6 +136,37 @@ public class EventBasedParseRunner<V>
         }
     });
 
+    /*
+     * Listeners, for direct dispatch
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private ParseRunnerListener<V>[] listeners = new ParseRunnerListener[0];
+    private boolean directDispatch = false;
+
+    /*
+     * Match events pool, if events are reused
+     */
+    private MatchEventPool eventPool = null;
+
+    /*
+     * Memoization table, if enabled, and which matchers are memoized (indexed
+     * by their id in the grammar index)
+     */
+    private MemoTable memoTable = null;
+    private GrammarIndex grammar = null;
+    private boolean[] memoized = null;
+
+    /*
+     * Budgets, and the state of the current parsing run
+     */
+    private boolean budgeted = false;
+    private long timeoutNanos = 0L;
+    private long maxMatches = Long.MAX_VALUE;
+    private CancellationToken cancellationToken = null;
+    private long deadline = 0L;
+    private long nrMatches = 0L;
+    private int furthestIndex = 0;
+
     public EventBasedParseRunner(final Rule rule)
     {
         super(rule);
@@ -111,60 +179,419 @@ public class EventBasedParseRunner<V>
      */
     public final void registerListener(final ParseRunnerListener<V> listener)
     {
+        Preconditions.checkNotNull(listener, "listener");
         bus.register(listener);
+        final int len = listeners.length;
+        listeners = Arrays.copyOf(listeners, len + 1);
+        listeners[len] = listener;
+    }
+
+    /**
+     * Call listeners directly instead of posting events to an {@link EventBus}
+     *
+     * <p>Listeners are called in their order of registration. If one of them
+     * throws an exception, the remaining listeners are not called for this
+     * event and the parsing run is aborted.</p>
+     *
+     * @return this
+     */
+    public final EventBasedParseRunner<V> withDirectDispatch()
+    {
+        directDispatch = true;
+        return this;
+    }
+
+    /**
+     * Reuse match events instead of creating new ones for each match
+     *
+     * <p>Match events (pre match, match success and match failure) are pooled
+     * per context level and pointed to the current context before being
+     * dispatched. Listeners <strong>must not</strong> retain references to
+     * these events once the method they were passed to returns.</p>
+     *
+     * @return this
+     *
+     * @see MatchEventPool
+     */
+    public final EventBasedParseRunner<V> withReusableEvents()
+    {
+        eventPool = new MatchEventPool();
+        return this;
+    }
+
+    /**
+     * Memoize match results
+     *
+     * <p>In this mode, the outcome of a match (failure, or the end index on
+     * success) is recorded for each matcher and start index, and reused if the
+     * same matcher is tried again at the same index. Only composite and
+     * predicate matchers which cannot reach any action are memoized (see
+     * {@link GrammarIndex#hasActions(int)}), since skipping actions would lose
+     * their side effects. In addition, when a parse tree is built, only
+     * failures are reused: skipping a successful match would skip the creation
+     * of its nodes.</p>
+     *
+     * <p>When a result is reused, listeners receive a {@link MemoHitEvent}
+     * between the pre match event and the match success or failure event; the
+     * children of the matcher are not run and generate no events. Listeners
+     * which need the events of every match may reject this mode (see {@link
+     * ParseRunnerListener#supportsMemoization()}); parsing runs then fail with
+     * an {@link IllegalStateException}.</p>
+     *
+     * <p>The table has a fixed size, of at most the given number of entries
+     * (about 16 bytes each); when it is full, older entries are evicted. It is
+     * cleared at the start of each parsing run.</p>
+     *
+     * @param maxEntries the maximum number of entries
+     * @return this
+     */
+    public final EventBasedParseRunner<V> withMemoization(final int maxEntries)
+    {
+        memoTable = new MemoTable(maxEntries);
+        grammar = GrammarIndex.of(getRootMatcher());
+
+        final int nrMatchers = grammar.size();
+        memoized = new boolean[nrMatchers];
+
+        MatcherType type;
+        for (int id = 0; id < nrMatchers; id++) {
+            type = grammar.getType(id);
+            memoized[id] = !grammar.hasActions(id)
+                && (type == MatcherType.COMPOSITE
+                || type == MatcherType.PREDICATE);
+        }
+
+        return this;
+    }
+
+    /**
+     * Abort parsing runs which take longer than a given time
+     *
+     * <p>The time is checked periodically, so a run may take a little longer
+     * than this before it is aborted.</p>
+     *
+     * @param duration the maximum duration
+     * @param unit the time unit of the duration
+     * @return this
+     *
+     * @see ParseAbortedException.Reason#TIMEOUT
+     */
+    public final EventBasedParseRunner<V> withTimeout(final long duration,
+        final TimeUnit unit)
+    {
+        Preconditions.checkArgument(duration > 0L,
+            "duration must be positive");
+        timeoutNanos = unit.toNanos(duration);
+        budgeted = true;
+        return this;
+    }
+
+    /**
+     * Abort parsing runs which attempt more than a given number of matches
+     *
+     * @param maxMatches the maximum number of matches
+     * @return this
+     *
+     * @see ParseAbortedException.Reason#MAX_MATCHES
+     */
+    public final EventBasedParseRunner<V> withMaxMatches(final long maxMatches)
+    {
+        Preconditions.checkArgument(maxMatches > 0L,
+            "number of matches must be positive");
+        this.maxMatches = maxMatches;
+        budgeted = true;
+        return this;
+    }
+
+    /**
+     * Abort parsing runs once a token is cancelled
+     *
+     * <p>The token is checked when a run starts, then periodically.</p>
+     *
+     * @param token the cancellation token
+     * @return this
+     *
+     * @see ParseAbortedException.Reason#CANCELLED
+     */
+    public final EventBasedParseRunner<V> withCancellationToken(
+        final CancellationToken token)
+    {
+        cancellationToken = Preconditions.checkNotNull(token);
+        budgeted = true;
+        return this;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>If the run is aborted (see {@link ParseAbortedException}) or fails
+     * with an exception, listeners still receive a post parse event, with a
+     * failed result, before the exception is thrown; this lets them release
+     * the resources they hold for the run. Errors thrown by listeners at this
+     * point are added to the exception as {@link Throwable#getSuppressed()
+     * suppressed} exceptions.</p>
+     */
     @Override
     public ParsingResult<V> run(final InputBuffer inputBuffer)
     {
         Preconditions.checkNotNull(inputBuffer, "inputBuffer");
+        if (memoTable != null)
+            for (final ParseRunnerListener<V> listener: listeners)
+                if (!listener.supportsMemoization())
+                    throw new IllegalStateException("listener "
+                        + listener.getClass().getName()
+                        + " does not support memoization");
+        throwable = null;
         resetValueStack();
+        if (memoTable != null)
+            memoTable.clear();
+        nrMatches = 0L;
+        furthestIndex = 0;
+        deadline = System.nanoTime() + timeoutNanos;
+        if (cancellationToken != null && cancellationToken.isCancelled())
+            throw abort(ParseAbortedException.Reason.CANCELLED);
 
         final MatcherContext<V> rootContext
             = createRootContext(inputBuffer, this, true);
 
-        bus.post(new PreParseEvent<>(rootContext));
+        final PreParseEvent<V> preParseEvent = new PreParseEvent<>(rootContext);
 
-        if (throwable != null)
-            throw new RuntimeException("parse listener error", throwable);
+        if (directDispatch) {
+            try {
+                for (final ParseRunnerListener<V> listener: listeners)
+                    listener.beforeParse(preParseEvent);
+            } catch (Throwable t) {
+                throw listenerError(t);
+            }
+        } else {
+            bus.post(preParseEvent);
+            if (throwable != null)
+                throw listenerError(throwable);
+        }
+
+        final boolean matched;
+
+        try {
+            matched = rootContext.runMatcher();
+        } catch (RuntimeException | Error e) {
+            afterFailure(rootContext, e);
+            throw e;
+        }
 
-        final boolean matched = rootContext.runMatcher();
         final ParsingResult<V> result
             = createParsingResult(matched, rootContext);
 
-        bus.post(new PostParseEvent<>(result));
+        afterParse(result);
+        return result;
+    }
 
-        if (throwable != null)
-            throw new RuntimeException("parse listener error", throwable);
+    /*
+     * Notify listeners that a run failed with an exception; errors from
+     * listeners are attached to that exception
+     */
+    private void afterFailure(final MatcherContext<V> rootContext,
+        final Throwable failure)
+    {
+        throwable = null;
+        try {
+            afterParse(createParsingResult(false, rootContext));
+        } catch (RuntimeException | Error e) {
+            if (e != failure)
+                failure.addSuppressed(e);
+        }
+    }
 
-        return result;
+    private void afterParse(final ParsingResult<V> result)
+    {
+        final PostParseEvent<V> postParseEvent = new PostParseEvent<>(result);
+
+        if (directDispatch) {
+            try {
+                for (final ParseRunnerListener<V> listener: listeners)
+                    listener.afterParse(postParseEvent);
+            } catch (Throwable t) {
+                throw listenerError(t);
+            }
+        } else {
+            bus.post(postParseEvent);
+            if (throwable != null)
+                throw listenerError(throwable);
+        }
     }
 
     @Override
     public <T> boolean match(final MatcherContext<T> context)
     {
+        if (budgeted)
+            checkBudget(context);
+
+        if (directDispatch)
+            return directMatch(context);
+
         final Matcher matcher = context.getMatcher();
 
-        final PreMatchEvent<T> preMatchEvent = new PreMatchEvent<>(context);
+        final PreMatchEvent<T> preMatchEvent = eventPool != null
+            ? eventPool.preMatch(context)
+            : new PreMatchEvent<>(context);
 
         bus.post(preMatchEvent);
 
         if (throwable != null)
-            throw new RuntimeException("parse listener error", throwable);
+            throw listenerError(throwable);
 
         // FIXME: is there any case at all where context.getMatcher() is null?
-        @SuppressWarnings("ConstantConditions")
-        final boolean match = matcher.match(context);
+        final int memoId = memoTable != null ? memoId(matcher) : -1;
+        final int memoResult = memoId >= 0 ? lookupMemo(context, memoId)
+            : MemoTable.ABSENT;
+        final boolean match;
+
+        if (memoResult == MemoTable.ABSENT) {
+            final int startIndex = context.getCurrentIndex();
+            //noinspection ConstantConditions
+            match = matcher.match(context);
+            if (memoId >= 0)
+                memoTable.put(memoId, startIndex,
+                    match ? context.getCurrentIndex() : MemoTable.FAILURE);
+        } else {
+            match = memoResult != MemoTable.FAILURE;
+            if (match)
+                context.setCurrentIndex(memoResult);
+            final MemoHitEvent<T> memoHitEvent = eventPool != null
+                ? eventPool.memoHit(context)
+                : new MemoHitEvent<>(context);
+            bus.post(memoHitEvent);
+            if (throwable != null)
+                throw listenerError(throwable);
+        }
 
-        final MatchContextEvent<T> postMatchEvent = match
-            ? new MatchSuccessEvent<>(context)
-            : new MatchFailureEvent<>(context);
+        final MatchContextEvent<T> postMatchEvent;
+
+        if (eventPool != null)
+            postMatchEvent = match ? eventPool.matchSuccess(context)
+                : eventPool.matchFailure(context);
+        else
+            postMatchEvent = match ? new MatchSuccessEvent<>(context)
+                : new MatchFailureEvent<>(context);
 
         bus.post(postMatchEvent);
 
         if (throwable != null)
-            throw new RuntimeException("parse listener error", throwable);
+            throw listenerError(throwable);
 
         return match;
     }
+
+    private <T> boolean directMatch(final MatcherContext<T> context)
+    {
+        // Listeners and contexts share the same type parameter at runtime
+        @SuppressWarnings("unchecked")
+        final MatcherContext<V> ctx
+            = (MatcherContext<V>) (MatcherContext<?>) context;
+        final Matcher matcher = ctx.getMatcher();
+
+        final PreMatchEvent<V> preMatchEvent = eventPool != null
+            ? eventPool.preMatch(ctx)
+            : new PreMatchEvent<>(ctx);
+
+        try {
+            for (final ParseRunnerListener<V> listener: listeners)
+                listener.beforeMatch(preMatchEvent);
+        } catch (Throwable t) {
+            throw listenerError(t);
+        }
+
+        final int memoId = memoTable != null ? memoId(matcher) : -1;
+        final int memoResult = memoId >= 0 ? lookupMemo(ctx, memoId)
+            : MemoTable.ABSENT;
+        final boolean match;
+
+        if (memoResult == MemoTable.ABSENT) {
+            final int startIndex = ctx.getCurrentIndex();
+            //noinspection ConstantConditions
+            match = matcher.match(ctx);
+            if (memoId >= 0)
+                memoTable.put(memoId, startIndex,
+                    match ? ctx.getCurrentIndex() : MemoTable.FAILURE);
+        } else {
+            match = memoResult != MemoTable.FAILURE;
+            if (match)
+                ctx.setCurrentIndex(memoResult);
+            final MemoHitEvent<V> event = eventPool != null
+                ? eventPool.memoHit(ctx)
+                : new MemoHitEvent<>(ctx);
+            try {
+                for (final ParseRunnerListener<V> listener: listeners)
+                    listener.memoHit(event);
+            } catch (Throwable t) {
+                throw listenerError(t);
+            }
+        }
+
+        try {
+            if (match) {
+                final MatchSuccessEvent<V> event = eventPool != null
+                    ? eventPool.matchSuccess(ctx)
+                    : new MatchSuccessEvent<>(ctx);
+                for (final ParseRunnerListener<V> listener: listeners)
+                    listener.matchSuccess(event);
+            } else {
+                final MatchFailureEvent<V> event = eventPool != null
+                    ? eventPool.matchFailure(ctx)
+                    : new MatchFailureEvent<>(ctx);
+                for (final ParseRunnerListener<V> listener: listeners)
+                    listener.matchFailure(event);
+            }
+        } catch (Throwable t) {
+            throw listenerError(t);
+        }
+
+        return match;
+    }
+
+    private void checkBudget(final MatcherContext<?> context)
+    {
+        final int index = context.getCurrentIndex();
+        if (index > furthestIndex)
+            furthestIndex = index;
+
+        if (++nrMatches > maxMatches)
+            throw abort(ParseAbortedException.Reason.MAX_MATCHES);
+
+        if (nrMatches % BUDGET_CHECK_INTERVAL != 0L)
+            return;
+
+        if (timeoutNanos > 0L && System.nanoTime() - deadline > 0L)
+            throw abort(ParseAbortedException.Reason.TIMEOUT);
+        if (cancellationToken != null && cancellationToken.isCancelled())
+            throw abort(ParseAbortedException.Reason.CANCELLED);
+    }
+
+    private ParseAbortedException abort(
+        final ParseAbortedException.Reason reason)
+    {
+        return new ParseAbortedException(reason, furthestIndex, nrMatches);
+    }
+
+    /*
+     * Return the id of a matcher in the grammar index if it is memoized, -1
+     * otherwise
+     */
+    private int memoId(final Matcher matcher)
+    {
+        final int id = grammar.getId(matcher);
+        return id >= 0 && memoized[id] ? id : -1;
+    }
+
+    private int lookupMemo(final MatcherContext<?> context, final int memoId)
+    {
+        final int ret = memoTable.get(memoId, context.getCurrentIndex());
+        // Reusing a success would skip the creation of parse tree nodes
+        return ret >= 0 && !context.isNodeSuppressed() ? MemoTable.ABSENT
+            : ret;
+    }
+
+    private static RuntimeException listenerError(final Throwable t)
+    {
+        return new RuntimeException("parse listener error", t);
+    }
 }
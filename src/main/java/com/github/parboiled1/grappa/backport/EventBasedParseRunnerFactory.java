@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.github.parboiled1.grappa.backport.type.GrammarIndex;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import org.parboiled.Rule;
+import org.parboiled.matchers.VarFramingMatcher;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A factory of {@link EventBasedParseRunner}s for a given grammar
+ *
+ * <p>Parse runners hold per run state and are not thread safe. Rules may not
+ * be thread safe either: actions run in the context which was last set on
+ * their parser instance, and {@link org.parboiled.support.Var}s are fields of
+ * this instance. This class therefore either:</p>
+ *
+ * <ul>
+ *     <li>shares a single rule, and its {@link GrammarIndex}, between all
+ *     runners, if the grammar has neither actions nor variables (see {@link
+ *     #EventBasedParseRunnerFactory(Rule)});</li>
+ *     <li>or builds a new rule, normally using a new parser instance, for each
+ *     runner (see {@link #EventBasedParseRunnerFactory(Supplier)}).</li>
+ * </ul>
+ *
+ * <p>Runners are configured using {@link #configure(EventBasedParseRunner)},
+ * which you override to set runner options and register listeners:</p>
+ *
+ * <pre>
+ *     final Supplier&lt;Rule&gt; rules = new Supplier&lt;Rule&gt;()
+ *     {
+ *         &#64;Override
+ *         public Rule get()
+ *         {
+ *             return Parboiled.createParser(FooParser.class).theRule();
+ *         }
+ *     };
+ *
+ *     final EventBasedParseRunnerFactory&lt;Foo&gt; factory
+ *         = new EventBasedParseRunnerFactory&lt;Foo&gt;(rules)
+ *     {
+ *         &#64;Override
+ *         protected void configure(
+ *             final EventBasedParseRunner&lt;Foo&gt; runner)
+ *         {
+ *             runner.withDirectDispatch();
+ *             runner.registerListener(new MyParserListener&lt;Foo&gt;());
+ *         }
+ *     };
+ *
+ *     // From any thread
+ *     factory.getRunner().run(someInput);
+ * </pre>
+ *
+ * <p>There are two ways to obtain a runner:</p>
+ *
+ * <ul>
+ *     <li>{@link #getRunner()} returns a runner confined to the calling
+ *     thread, which is created and configured on first use, then reused for
+ *     all subsequent runs in this thread; its listeners therefore see all these
+ *     runs;</li>
+ *     <li>{@link #newRunner()} creates and configures a new runner each time;
+ *     use this if your listeners only support one run (for instance, {@link
+ *     com.github.parboiled1.grappa.backport.tracer.TracingListener}).</li>
+ * </ul>
+ *
+ * @param <V> type parameter of the parser
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public class EventBasedParseRunnerFactory<V>
+{
+    private final Supplier<? extends Rule> rules;
+
+    /*
+     * The index of a shared rule; referencing it here keeps it cached for as
+     * long as this factory is in use
+     */
+    @Nullable
+    private final GrammarIndex grammar;
+
+    private final ThreadLocal<EventBasedParseRunner<V>> runners
+        = new ThreadLocal<EventBasedParseRunner<V>>()
+    {
+        @Override
+        protected EventBasedParseRunner<V> initialValue()
+        {
+            return newRunner();
+        }
+    };
+
+    /**
+     * Build a factory whose runners all share the same rule
+     *
+     * @param rule the rule
+     * @throws IllegalArgumentException the grammar has actions or variables
+     */
+    public EventBasedParseRunnerFactory(final Rule rule)
+    {
+        Preconditions.checkNotNull(rule);
+        grammar = GrammarIndex.of(rule);
+        Preconditions.checkArgument(isShareable(grammar),
+            "grammar has actions or variables and cannot be shared between"
+            + " threads; build a new rule for each runner instead");
+        rules = Suppliers.ofInstance(rule);
+    }
+
+    /**
+     * Build a factory whose runners each use a new rule
+     *
+     * <p>The supplier is called once for each runner, possibly from several
+     * threads at once, and must return a rule which is not used by any other
+     * runner.</p>
+     *
+     * @param rules the rule supplier
+     */
+    public EventBasedParseRunnerFactory(final Supplier<? extends Rule> rules)
+    {
+        this.rules = Preconditions.checkNotNull(rules);
+        grammar = null;
+    }
+
+    /**
+     * Create and configure a new runner
+     *
+     * @return a new runner
+     */
+    public final EventBasedParseRunner<V> newRunner()
+    {
+        final EventBasedParseRunner<V> runner
+            = new EventBasedParseRunner<>(rules.get());
+        configure(runner);
+        return runner;
+    }
+
+    /**
+     * Return the runner of the current thread
+     *
+     * <p>The runner is created and configured the first time this method is
+     * called from a given thread.</p>
+     *
+     * <p>Note that parsing results share the value stack and parse errors of
+     * their runner; they are reset by the next run.</p>
+     *
+     * @return the runner of the current thread
+     */
+    public final EventBasedParseRunner<V> getRunner()
+    {
+        return runners.get();
+    }
+
+    /**
+     * Configure a newly created runner
+     *
+     * <p>This implementation does nothing.</p>
+     *
+     * @param runner the runner
+     */
+    protected void configure(final EventBasedParseRunner<V> runner)
+    {
+    }
+
+    private static boolean isShareable(final GrammarIndex grammar)
+    {
+        if (grammar.hasActions(0))
+            return false;
+
+        final int size = grammar.size();
+        for (int id = 0; id < size; id++)
+            if (grammar.getMatcher(id) instanceof VarFramingMatcher)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Arrays;
+
+/**
+ * A bounded memoization table for match results
+ *
+ * <p>Entries are keyed by matcher id and start index, and hold either the end
+ * index of a successful match or {@link #FAILURE}. The table is an open
+ * addressing table with a fixed number of slots; a lookup or an insertion
+ * probes at most {@link #MAX_PROBES} slots. If they are all taken when
+ * inserting, the entry in the first probed slot is evicted.</p>
+ *
+ * <p>Entries are tagged with a generation number, so that the table can be
+ * cleared between parsing runs in constant time.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ */
+@ParametersAreNonnullByDefault
+final class MemoTable
+{
+    static final int ABSENT = -2;
+    static final int FAILURE = -1;
+
+    private static final int MAX_PROBES = 8;
+
+    private final long[] keys;
+    private final int[] results;
+    private final int[] generations;
+    private final int mask;
+
+    private int generation = 1;
+
+    MemoTable(final int maxEntries)
+    {
+        Preconditions.checkArgument(maxEntries > 0,
+            "number of entries must be positive");
+        final int size = Integer.highestOneBit(Math.max(maxEntries,
+            MAX_PROBES));
+        keys = new long[size];
+        results = new int[size];
+        generations = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Forget all entries
+     */
+    void clear()
+    {
+        generation++;
+        if (generation != 0)
+            return;
+        // Wrapped around: stale entries could become valid again
+        Arrays.fill(generations, 0);
+        generation = 1;
+    }
+
+    /**
+     * Return the result of a match
+     *
+     * @param matcherId the matcher id
+     * @param index the start index
+     * @return the end index, {@link #FAILURE} or {@link #ABSENT}
+     */
+    int get(final int matcherId, final int index)
+    {
+        final long key = key(matcherId, index);
+        int slot = hash(key) & mask;
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (generations[slot] == generation && keys[slot] == key)
+                return results[slot];
+            slot = slot + 1 & mask;
+        }
+
+        return ABSENT;
+    }
+
+    /**
+     * Record the result of a match
+     *
+     * @param matcherId the matcher id
+     * @param index the start index
+     * @param result the end index, or {@link #FAILURE}
+     */
+    void put(final int matcherId, final int index, final int result)
+    {
+        final long key = key(matcherId, index);
+        final int first = hash(key) & mask;
+        int slot = first;
+
+        for (int i = 0; i < MAX_PROBES; i++) {
+            if (generations[slot] != generation || keys[slot] == key) {
+                store(slot, key, result);
+                return;
+            }
+            slot = slot + 1 & mask;
+        }
+
+        store(first, key, result);
+    }
+
+    private void store(final int slot, final long key, final int result)
+    {
+        keys[slot] = key;
+        results[slot] = result;
+        generations[slot] = generation;
+    }
+
+    private static long key(final int matcherId, final int index)
+    {
+        return (long) matcherId << 32 | index & 0xffffffffL;
+    }
+
+    private static int hash(final long key)
+    {
+        long h = key * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 32;
+        return (int) h ^ (int) (h >>> 16);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import org.parboiled.errors.ParserRuntimeException;
+
+/**
+ * Exception thrown when a parsing run exceeds its budget or is cancelled
+ *
+ * <p>This extends {@link ParserRuntimeException} so that matcher contexts
+ * rethrow it as is instead of wrapping it.</p>
+ *
+ * @see EventBasedParseRunner#withTimeout(long, java.util.concurrent.TimeUnit)
+ * @see EventBasedParseRunner#withMaxMatches(long)
+ * @see EventBasedParseRunner#withCancellationToken(CancellationToken)
+ */
+public final class ParseAbortedException
+    extends ParserRuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why a parsing run was aborted
+     */
+    public enum Reason
+    {
+        TIMEOUT,
+        MAX_MATCHES,
+        CANCELLED,
+    }
+
+    private final Reason reason;
+    private final int furthestIndex;
+    private final long nrMatches;
+
+    public ParseAbortedException(final Reason reason, final int furthestIndex,
+        final long nrMatches)
+    {
+        super(String.format("parsing run aborted (%s) after %d matches; "
+            + "furthest index reached: %d", reason, nrMatches, furthestIndex));
+        this.reason = reason;
+        this.furthestIndex = furthestIndex;
+        this.nrMatches = nrMatches;
+    }
+
+    public Reason getReason()
+    {
+        return reason;
+    }
+
+    /**
+     * Return the highest input index at which a match was attempted
+     *
+     * @return the index
+     */
+    public int getFurthestIndex()
+    {
+        return furthestIndex;
+    }
+
+    /**
+     * Return the number of matches attempted before the run was aborted
+     *
+     * @return the number of matches
+     */
+    public long getNrMatches()
+    {
+        return nrMatches;
+    }
+}
@@ -18,6 +18,7 @@ package com.github.parboiled1.grappa.backport;
 
 import com.github.parboiled1.grappa.backport.events.MatchFailureEvent;
 import com.github.parboiled1.grappa.backport.events.MatchSuccessEvent;
+import com.github.parboiled1.grappa.backport.events.MemoHitEvent;
 import com.github.parboiled1.grappa.backport.events.PostParseEvent;
 import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
 import com.github.parboiled1.grappa.backport.events.PreParseEvent;
@@ -28,19 +29,25 @@ import javax.annotation.ParametersAreNonnullByDefault;
 /**
  * Basic parse runner listener implementation
  *
- * <p>You have five possible hooks:</p>
+ * <p>You have six possible hooks:</p>
  *
  * <ul>
  *     <li>before the parsing run starts (see {@link PreParseEvent});</li>
  *     <li>before a rule attemps a match (see {@link PreMatchEvent});</li>
  *     <li>a rule has successfully matched (see {@link MatchSuccessEvent});</li>
  *     <li>a rule has failed to match (see {@link MatchFailureEvent});</li>
+ *     <li>the result of a rule has been found in the memoization table, if
+ *     enabled (see {@link MemoHitEvent});</li>
  *     <li>after the parsing run has completed, whether the run has succeeded or
  *     not (see {@link PostParseEvent}).</li>
  * </ul>
  *
  * <p>This base implementation does nothing.</p>
  *
+ * <p>If the parse runner {@link EventBasedParseRunner#withReusableEvents()
+ * reuses match events}, implementations must not keep references to the match
+ * events they receive once the matching method returns.</p>
+ *
  * @param <V> type parameter of the running parser
  *
  * @see EventBasedParseRunner#registerListener(ParseRunnerListener)
@@ -68,8 +75,27 @@ public class ParseRunnerListener<V>
     {
     }
 
+    @Subscribe
+    public void memoHit(final MemoHitEvent<V> event)
+    {
+    }
+
     @Subscribe
     public void afterParse(final PostParseEvent<V> event)
     {
     }
+
+    /**
+     * Tell whether this listener can be used with a memoizing runner
+     *
+     * <p>A runner which {@link EventBasedParseRunner#withMemoization(int)
+     * memoizes match results} refuses to start a parsing run if one of its
+     * listeners returns false. This implementation returns true.</p>
+     *
+     * @return false if this listener needs the events of every match
+     */
+    public boolean supportsMemoization()
+    {
+        return true;
+    }
 }
@@ -18,21 +18,22 @@ package com.github.parboiled1.grappa.backport.buffers;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
-import com.google.common.util.concurrent.Futures;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.parboiled.support.Chars;
 import org.parboiled.support.IndexRange;
 import org.parboiled.support.Position;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
 import java.util.Objects;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,7 +47,8 @@ import java.util.regex.Pattern;
  *
  * <p>Among other things, this means you can use this package on very large
  * files using <a href="https://github.com/fge/largetext">largetext</a>, which
- * implements {@link CharSequence} over multi-gigabyte files.</p>
+ * implements {@link CharSequence} over multi-gigabyte files, or {@link
+ * #fromFile(Path, Charset)}, which uses a {@link MappedFileCharSequence}.</p>
  *
  * <p>This is a backport from grappa 2.0.x.</p>
  */
@@ -54,36 +56,69 @@ import java.util.regex.Pattern;
 public final class CharSequenceInputBuffer
     implements InputBuffer
 {
-    private static final ExecutorService EXECUTOR_SERVICE;
-
-    static {
-        final ThreadFactory factory = new ThreadFactoryBuilder()
-            .setDaemon(true).setNameFormat("linecounter-thread-%d").build();
-        EXECUTOR_SERVICE = Executors.newCachedThreadPool(factory);
-    }
+    private static final int COPY_BUFFER_SIZE = 1 << 16;
 
     private final CharSequence charSequence;
-    private final Future<LineCounter> lineCounter;
+    private final LineIndex lineIndex;
+    private volatile CodePointIndex codePointIndex = null;
 
+    /**
+     * Create a buffer from a parboiled input buffer
+     *
+     * <p>This avoids copying the input whenever possible: the buffer wrapped
+     * by a {@link LegacyInputBufferAdapter} is returned as is, and legacy
+     * buffers which are also {@link CharSequence}s are used directly. Legacy
+     * {@link org.parboiled.buffers.DefaultInputBuffer}s and {@link
+     * org.parboiled.buffers.CharSequenceInputBuffer}s are copied at most once.
+     * Other implementations are read by chunks.</p>
+     *
+     * @param legacyBuffer the legacy buffer
+     * @return a buffer
+     */
     public static InputBuffer fromLegacy(
         final org.parboiled.buffers.InputBuffer legacyBuffer
     )
     {
+        if (legacyBuffer instanceof LegacyInputBufferAdapter)
+            return ((LegacyInputBufferAdapter) legacyBuffer).getInputBuffer();
         return new CharSequenceInputBuffer(loadLegacyBuffer(legacyBuffer));
     }
 
+    /**
+     * Create a buffer over a memory mapped file
+     *
+     * @param path the path to the file
+     * @param charset the encoding of the file
+     * @return a new buffer
+     * @throws IOException failed to map the file
+     * @throws IllegalArgumentException unsupported encoding
+     *
+     * @see MappedFileCharSequence
+     */
+    public static CharSequenceInputBuffer fromFile(final Path path,
+        final Charset charset)
+        throws IOException
+    {
+        return new CharSequenceInputBuffer(
+            MappedFileCharSequence.open(path, charset));
+    }
+
     public CharSequenceInputBuffer(@Nonnull final CharSequence charSequence)
+    {
+        this(charSequence, LineCountingStrategy.eager());
+    }
+
+    /**
+     * Create a buffer with a given line counting strategy
+     *
+     * @param charSequence the input
+     * @param strategy the line counting strategy
+     */
+    public CharSequenceInputBuffer(@Nonnull final CharSequence charSequence,
+        @Nonnull final LineCountingStrategy strategy)
     {
         this.charSequence = Objects.requireNonNull(charSequence);
-        lineCounter = EXECUTOR_SERVICE.submit(new Callable<LineCounter>()
-        {
-            @Override
-            public LineCounter call()
-                throws Exception
-            {
-                return new LineCounter(charSequence);
-            }
-        });
+        lineIndex = strategy.newIndex(charSequence);
     }
 
     public CharSequenceInputBuffer(@Nonnull final char[] chars)
@@ -149,20 +184,49 @@ public final class CharSequenceInputBuffer
     @Override
     public Position getPosition(final int index)
     {
-        return Futures.getUnchecked(lineCounter).toPosition(index);
+        return lineIndex.toPosition(index);
+    }
+
+    /**
+     * Return the line number of an index
+     *
+     * <p>Unlike {@link #getPosition(int)}, this does not allocate a {@link
+     * Position}. Line lookups remember the last line found, which makes
+     * lookups with increasing or close indices cheap.</p>
+     *
+     * @param index the index
+     * @return the line number (counting from 1)
+     *
+     * @see #getColumn(int)
+     */
+    public int getLine(final int index)
+    {
+        return lineIndex.getLine(index);
+    }
+
+    /**
+     * Return the column number of an index
+     *
+     * @param index the index
+     * @return the column number (counting from 1)
+     *
+     * @see #getLine(int)
+     */
+    public int getColumn(final int index)
+    {
+        return lineIndex.getColumn(index);
     }
 
     @Override
     public String extractLine(final int lineNumber)
     {
         Preconditions.checkArgument(lineNumber > 0, "line number is negative");
-        final LineCounter counter = Futures.getUnchecked(lineCounter);
-        final Range<Integer> range = counter.getLineRange(lineNumber);
+        final Range<Integer> range = lineIndex.getLineRange(lineNumber);
         final int start = range.lowerEndpoint();
         int end = range.upperEndpoint();
-        if (charAt(end - 1) == '\n')
+        if (end > start && charAt(end - 1) == '\n')
             end--;
-        if (charAt(end - 1) == '\r')
+        if (end > start && charAt(end - 1) == '\r')
             end--;
         return extract(start, end);
     }
@@ -171,15 +235,14 @@ public final class CharSequenceInputBuffer
     @Override
     public IndexRange getLineRange(final int lineNumber)
     {
-        final Range<Integer> range
-            = Futures.getUnchecked(lineCounter).getLineRange(lineNumber);
+        final Range<Integer> range = lineIndex.getLineRange(lineNumber);
         return new IndexRange(range.lowerEndpoint(), range.upperEndpoint());
     }
 
     @Override
     public int getLineCount()
     {
-        return Futures.getUnchecked(lineCounter).getNrLines();
+        return lineIndex.getNrLines();
     }
 
     @Override
@@ -188,9 +251,123 @@ public final class CharSequenceInputBuffer
         return charSequence.length();
     }
 
+    /**
+     * Write the contents of this buffer to an output stream
+     *
+     * <p>The input is encoded by chunks, so the whole text is never held in
+     * memory. If the input is a {@link MappedFileCharSequence} whose content
+     * is already valid in the requested encoding, the bytes of the file are
+     * copied as is.</p>
+     *
+     * <p>Unpaired surrogates are replaced with the encoder's replacement.</p>
+     *
+     * @param out the output stream (not closed)
+     * @param charset the encoding to use
+     * @throws IOException failed to write to the stream
+     */
+    public void writeTo(final OutputStream out, final Charset charset)
+        throws IOException
+    {
+        if (charSequence instanceof MappedFileCharSequence) {
+            final MappedFileCharSequence mapped
+                = (MappedFileCharSequence) charSequence;
+            if (mapped.canCopyAs(charset)) {
+                mapped.copyBytesTo(out);
+                return;
+            }
+        }
+
+        final CharsetEncoder encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer in = CharBuffer.wrap(charSequence);
+        final ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+
+        CoderResult result;
+
+        do {
+            result = encoder.encode(in, buf, true);
+            drain(buf, out);
+        } while (result.isOverflow());
+
+        do {
+            result = encoder.flush(buf);
+            drain(buf, out);
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Return the number of code points in this buffer
+     *
+     * <p>The first call to this method, or to {@link #toCodePointIndex(int)},
+     * scans the input once; subsequent calls are O(1).</p>
+     *
+     * @return the number of code points
+     */
+    public int getCodePointCount()
+    {
+        return getCodePointIndex().getCodePointCount();
+    }
+
+    /**
+     * Return the number of code points before a given index
+     *
+     * <p>This is equivalent to {@link Character#codePointCount(CharSequence,
+     * int, int)} from 0 to the given index. Indices beyond the end of input
+     * are adjusted to the length of the input.</p>
+     *
+     * @param index the index
+     * @return the code point index
+     *
+     * @throws IllegalArgumentException index is negative
+     */
+    public int toCodePointIndex(final int index)
+    {
+        Preconditions.checkArgument(index >= 0, "index is negative");
+        final int realIndex = Math.min(index, charSequence.length());
+        return getCodePointIndex().toCodePointIndex(realIndex);
+    }
+
+    private CodePointIndex getCodePointIndex()
+    {
+        CodePointIndex ret = codePointIndex;
+        if (ret != null)
+            return ret;
+        synchronized (this) {
+            ret = codePointIndex;
+            if (ret == null) {
+                ret = CodePointIndex.build(charSequence);
+                codePointIndex = ret;
+            }
+            return ret;
+        }
+    }
+
+    private static void drain(final ByteBuffer buf, final OutputStream out)
+        throws IOException
+    {
+        out.write(buf.array(), 0, buf.position());
+        buf.clear();
+    }
+
+    @SuppressWarnings("deprecation")
     private static CharSequence loadLegacyBuffer(
         final org.parboiled.buffers.InputBuffer buffer)
     {
+        if (buffer instanceof CharSequence)
+            return (CharSequence) buffer;
+
+        /*
+         * Both of these clamp the end index to the length of their input, so
+         * the whole input can be extracted in one go. For a legacy
+         * CharSequenceInputBuffer over a String (which is what parse runners
+         * use when running over a String), this returns the String itself.
+         */
+        if (buffer instanceof org.parboiled.buffers.DefaultInputBuffer
+            || buffer instanceof org.parboiled.buffers.CharSequenceInputBuffer)
+            return buffer.extract(0, Integer.MAX_VALUE);
+
+        // Other implementations: we don't know the length, read by chunks
         final int bufsize = 4096;
         String s;
         final StringBuilder sb = new StringBuilder();
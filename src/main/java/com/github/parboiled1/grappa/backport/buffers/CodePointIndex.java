@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import java.util.Arrays;
+
+/**
+ * Conversion between char indices and code point indices
+ *
+ * <p>This records the indices at which a surrogate pair starts; for inputs
+ * without any characters outside the BMP, this is an empty array and all
+ * conversions are trivial.</p>
+ *
+ * <p>Results are the same as those of {@link Character#codePointCount(
+ * CharSequence, int, int)}: in particular, unpaired surrogates count as one
+ * code point each.</p>
+ *
+ * @see CharSequenceInputBuffer#getCodePointCount()
+ * @see CharSequenceInputBuffer#toCodePointIndex(int)
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+final class CodePointIndex
+{
+    private static final int[] NO_PAIRS = new int[0];
+
+    private final int[] pairStarts;
+    private final int nrCodePoints;
+
+    private CodePointIndex(final int[] pairStarts, final int len)
+    {
+        this.pairStarts = pairStarts;
+        nrCodePoints = len - pairStarts.length;
+    }
+
+    static CodePointIndex build(final CharSequence input)
+    {
+        final int len = input.length();
+        int[] starts = NO_PAIRS;
+        int count = 0;
+        int index = 0;
+        char c;
+
+        while (index < len - 1) {
+            c = input.charAt(index++);
+            if (!Character.isHighSurrogate(c))
+                continue;
+            if (!Character.isLowSurrogate(input.charAt(index)))
+                continue;
+            if (count == starts.length)
+                starts = Arrays.copyOf(starts, Math.max(16, count * 2));
+            starts[count++] = index - 1;
+            index++;
+        }
+
+        return new CodePointIndex(Arrays.copyOf(starts, count), len);
+    }
+
+    int getCodePointCount()
+    {
+        return nrCodePoints;
+    }
+
+    /**
+     * Return the number of code points before a given char index
+     *
+     * <p>An index pointing to the low surrogate of a pair does not count that
+     * pair.</p>
+     *
+     * @param index the index; must be between 0 and the input length
+     * @return the code point index
+     */
+    int toCodePointIndex(final int index)
+    {
+        if (pairStarts.length == 0)
+            return index;
+        // Pairs which are complete before index start before index - 1
+        final int ret = Arrays.binarySearch(pairStarts, index - 1);
+        return index - (ret >= 0 ? ret : -ret - 1);
+    }
+}
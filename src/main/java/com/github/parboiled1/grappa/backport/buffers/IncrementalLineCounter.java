@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.google.common.collect.Range;
+import org.parboiled.support.Position;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.Tainted;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+
+/**
+ * Line information computed on demand
+ *
+ * <p>The input is only scanned as far as needed to answer a query: asking for
+ * the position of index {@code n} only scans the first {@code n} characters.
+ * Results are the same as those of a {@link LineCounter}.</p>
+ *
+ * @see LineCountingStrategy#incremental()
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+final class IncrementalLineCounter
+    implements LineIndex
+{
+    private static final int MIN_CAPACITY = 16;
+
+    private final CharSequence input;
+    private final int len;
+
+    private int[] lineStarts = new int[MIN_CAPACITY];
+    private int nrStarts = 1;
+    private int scanned = 0;
+    private int hint = 0;
+
+    IncrementalLineCounter(final CharSequence input)
+    {
+        this.input = input;
+        len = input.length();
+    }
+
+    @Override
+    public synchronized int getNrLines()
+    {
+        scanTo(len);
+        return nrStarts;
+    }
+
+    @Override
+    public synchronized Range<Integer> getLineRange(
+        @Tainted final int lineNr)
+    {
+        // Stop as soon as the start of the next line is known
+        while (scanned < len && nrStarts <= lineNr)
+            scanNext();
+
+        // Edge case: unfortunately, we can get an illegal line number
+        final int index = Math.min(lineNr, nrStarts) - 1;
+        final int end = index + 1 < nrStarts ? lineStarts[index + 1] : len;
+        return Range.closedOpen(lineStarts[index], end);
+    }
+
+    @Override
+    public synchronized Position toPosition(@Tainted final int index)
+    {
+        if (index < 0)
+            throw new IllegalStateException();
+
+        // Edge case: unfortunately, we can get an illegal index
+        if (index >= len) {
+            scanTo(len);
+            return new Position(nrStarts, len - lineStarts[nrStarts - 1] + 1);
+        }
+
+        final int lineNr = lineOf(index);
+
+        return new Position(lineNr + 1, index - lineStarts[lineNr] + 1);
+    }
+
+    @Override
+    public synchronized int getLine(@Tainted final int index)
+    {
+        if (index < 0)
+            throw new IllegalStateException();
+
+        // Edge case: unfortunately, we can get an illegal index
+        if (index >= len) {
+            scanTo(len);
+            return nrStarts;
+        }
+
+        return lineOf(index) + 1;
+    }
+
+    @Override
+    public synchronized int getColumn(@Tainted final int index)
+    {
+        if (index < 0)
+            throw new IllegalStateException();
+
+        // Edge case: unfortunately, we can get an illegal index
+        if (index >= len) {
+            scanTo(len);
+            return len - lineStarts[nrStarts - 1] + 1;
+        }
+
+        return index - lineStarts[lineOf(index)] + 1;
+    }
+
+    private int lineOf(final int index)
+    {
+        // All lines starting at or before index are known after this
+        scanTo(index);
+        hint = LineCounter.findLine(lineStarts, nrStarts, hint, index);
+        return hint;
+    }
+
+    private void scanTo(final int index)
+    {
+        while (scanned < index)
+            scanNext();
+    }
+
+    private void scanNext()
+    {
+        if (input.charAt(scanned++) != '\n')
+            return;
+        if (nrStarts == lineStarts.length)
+            lineStarts = Arrays.copyOf(lineStarts, nrStarts * 2);
+        lineStarts[nrStarts++] = scanned;
+    }
+}
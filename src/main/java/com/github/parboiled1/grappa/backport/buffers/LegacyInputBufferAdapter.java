@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import org.parboiled.support.IndexRange;
+import org.parboiled.support.Position;
+
+import javax.annotation.Nonnull;
+import java.util.Objects;
+
+/**
+ * An adapter of an {@link InputBuffer} to the parboiled input buffer interface
+ *
+ * <p>This allows to run a parser over any buffer of this package, for instance
+ * a buffer over a {@link MappedFileCharSequence memory mapped file}:</p>
+ *
+ * <pre>
+ *     final InputBuffer buffer = CharSequenceInputBuffer.fromFile(path, UTF_8);
+ *     runner.run(new LegacyInputBufferAdapter(buffer));
+ * </pre>
+ *
+ * <p>{@link CharSequenceInputBuffer#fromLegacy(
+ * org.parboiled.buffers.InputBuffer)} recognizes this adapter and returns the
+ * wrapped buffer directly.</p>
+ */
+public final class LegacyInputBufferAdapter
+    implements org.parboiled.buffers.InputBuffer
+{
+    private final InputBuffer inputBuffer;
+
+    public LegacyInputBufferAdapter(@Nonnull final InputBuffer inputBuffer)
+    {
+        this.inputBuffer = Objects.requireNonNull(inputBuffer);
+    }
+
+    /**
+     * Return the wrapped buffer
+     *
+     * @return the buffer
+     */
+    public InputBuffer getInputBuffer()
+    {
+        return inputBuffer;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+        return inputBuffer.charAt(index);
+    }
+
+    @Override
+    public boolean test(final int index, final char[] characters)
+    {
+        return inputBuffer.test(index, characters);
+    }
+
+    @Override
+    public String extract(final int start, final int end)
+    {
+        return inputBuffer.extract(start, end);
+    }
+
+    @Override
+    public String extract(final IndexRange range)
+    {
+        return inputBuffer.extract(range);
+    }
+
+    @Override
+    public Position getPosition(final int index)
+    {
+        return inputBuffer.getPosition(index);
+    }
+
+    @Override
+    public int getOriginalIndex(final int index)
+    {
+        return index;
+    }
+
+    @Override
+    public String extractLine(final int lineNumber)
+    {
+        return inputBuffer.extractLine(lineNumber);
+    }
+
+    @Override
+    public int getLineCount()
+    {
+        return inputBuffer.getLineCount();
+    }
+}
@@ -17,97 +17,309 @@
 package com.github.parboiled1.grappa.backport.buffers;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
 import org.parboiled.support.Position;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.Tainted;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+/**
+ * Line information for a character sequence
+ *
+ * <p>Lines are stored as an array of start indices: line {@code n} (counting
+ * from 1) spans from {@code lineStarts[n - 1]} (inclusive) to {@code
+ * lineStarts[n]} (exclusive), and the last element of the array is the length
+ * of the input.</p>
+ *
+ * <p>Large inputs can be scanned in parallel using {@link
+ * #LineCounter(CharSequence, ForkJoinPool)}: the input is split into chunks,
+ * newlines are searched for in each chunk independently and the results are
+ * then concatenated. The input must support concurrent reads in this case.
+ * </p>
+ *
+ * <p>Lookups by index remember the last line found, and walk from there when
+ * the next index is on the same line or on a nearby one; lookups with
+ * increasing or close indices therefore avoid a binary search.</p>
+ */
 // TODO: get rid of edge cases
-@SuppressWarnings({ "AutoBoxing", "AutoUnboxing" })
+@SuppressWarnings("AutoBoxing")
 @ParametersAreNonnullByDefault
 public final class LineCounter
+    implements LineIndex
 {
-    // TODO: replace with IntRange from largetext
-    private final List<Range<Integer>> lines = Lists.newArrayList();
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Chunk size, in chars, under which a parallel scan is not split further
+     */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Maximum number of lines walked from the last line found before falling
+     * back to a binary search
+     */
+    private static final int WALK_DISTANCE = 8;
+
+    /**
+     * Lazily created pool shared by all parallel scans
+     */
+    private static final class DefaultPool
+    {
+        private static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    private final int[] lineStarts;
     private final int nrLines;
     private final int len;
 
+    /*
+     * Last line found (0-based). This is only a hint: races are harmless since
+     * any value between 0 and nrLines - 1 is a valid starting point.
+     */
+    private int hint = 0;
+
     public LineCounter(final CharSequence input)
     {
-        int lowerBound = 0;
-        int index = 0;
-        len = input.length();
+        this(scan(input, 0, input.length()), input.length());
+    }
 
-        while (index < len) {
-            if (input.charAt(index++) != '\n')
-                continue;
-            lines.add(Range.closedOpen(lowerBound, index));
-            lowerBound = index;
-        }
-        lines.add(Range.closedOpen(lowerBound, index));
-        nrLines = lines.size();
+    /**
+     * Count lines using a fork/join pool
+     *
+     * <p>Inputs no longer than {@link #CHUNK_SIZE} are scanned in the calling
+     * thread.</p>
+     *
+     * @param input the input
+     * @param pool the pool to use
+     */
+    public LineCounter(final CharSequence input, final ForkJoinPool pool)
+    {
+        this(input.length() <= CHUNK_SIZE ? scan(input, 0, input.length())
+            : pool.invoke(new ScanTask(input, 0, input.length())),
+            input.length());
+    }
+
+    private LineCounter(final int[] newlineEnds, final int len)
+    {
+        this.len = len;
+        nrLines = newlineEnds.length + 1;
+        lineStarts = new int[nrLines + 1];
+        System.arraycopy(newlineEnds, 0, lineStarts, 1, newlineEnds.length);
+        lineStarts[nrLines] = len;
     }
 
     @VisibleForTesting
     LineCounter(final List<Range<Integer>> ranges)
     {
-        lines.addAll(ranges);
         nrLines = ranges.size();
+        lineStarts = new int[nrLines + 1];
+        for (int i = 0; i < nrLines; i++)
+            lineStarts[i] = ranges.get(i).lowerEndpoint();
         len = ranges.get(nrLines - 1).upperEndpoint();
+        lineStarts[nrLines] = len;
     }
 
+    /**
+     * Return the pool used for parallel scans when none is specified
+     *
+     * @return a shared pool, created on first use
+     */
+    static ForkJoinPool defaultPool()
+    {
+        return DefaultPool.INSTANCE;
+    }
+
+    @Override
     public int getNrLines()
     {
         return nrLines;
     }
 
+    @Override
     public Range<Integer> getLineRange(@Tainted final int lineNr)
     {
         // Edge case: unfortunately, we can get an illegal line number
-        return lines.get(Math.min(lineNr, nrLines) - 1);
+        final int index = Math.min(lineNr, nrLines) - 1;
+        return Range.closedOpen(lineStarts[index], lineStarts[index + 1]);
     }
 
+    @Override
     public Position toPosition(@Tainted final int index)
     {
         if (index < 0)
             throw new IllegalStateException();
 
-        final Range<Integer> range;
+        // Edge case: unfortunately, we can get an illegal index
+        if (index >= len)
+            return new Position(nrLines, len - lineStarts[nrLines - 1] + 1);
+
+        final int lineNr = lineOf(index);
+
+        return new Position(lineNr + 1, index - lineStarts[lineNr] + 1);
+    }
+
+    /**
+     * Return the line number of an index
+     *
+     * <p>This returns the same as {@code toPosition(index).line}, without
+     * allocating a {@link Position}.</p>
+     *
+     * @param index the index
+     * @return the line number (counting from 1)
+     */
+    @Override
+    public int getLine(@Tainted final int index)
+    {
+        if (index < 0)
+            throw new IllegalStateException();
 
         // Edge case: unfortunately, we can get an illegal index
-        if (index >= len) {
-            range = lines.get(nrLines - 1);
-            return new Position(nrLines, len - range.lowerEndpoint() + 1);
-        }
+        return index >= len ? nrLines : lineOf(index) + 1;
+    }
+
+    /**
+     * Return the column number of an index
+     *
+     * <p>This returns the same as {@code toPosition(index).column}, without
+     * allocating a {@link Position}.</p>
+     *
+     * @param index the index
+     * @return the column number (counting from 1)
+     */
+    @Override
+    public int getColumn(@Tainted final int index)
+    {
+        if (index < 0)
+            throw new IllegalStateException();
+
+        // Edge case: unfortunately, we can get an illegal index
+        if (index >= len)
+            return len - lineStarts[nrLines - 1] + 1;
 
-        final int lineNr = binarySearch(index);
+        return index - lineStarts[lineOf(index)] + 1;
+    }
 
-        range = lines.get(lineNr);
-        return new Position(lineNr + 1, index - range.lowerEndpoint() + 1);
+    private int lineOf(final int index)
+    {
+        final int ret = findLine(lineStarts, nrLines, hint, index);
+        hint = ret;
+        return ret;
     }
 
     @VisibleForTesting
     int binarySearch(final int index)
     {
-        return doBinarySearch(0, nrLines - 1, index);
+        return binarySearch(lineStarts, nrLines, index);
+    }
+
+    /**
+     * Find the line containing an index, starting from a given line
+     *
+     * <p>If the index is at most {@link #WALK_DISTANCE} lines away from the
+     * starting line, lines are walked; otherwise a binary search is done.</p>
+     *
+     * @param starts the line starts
+     * @param nrStarts the number of lines
+     * @param from the line (0-based) to start from
+     * @param index the index; must be less than the length of the input
+     * @return the line (0-based)
+     */
+    static int findLine(final int[] starts, final int nrStarts,
+        final int from, final int index)
+    {
+        int line = from;
+
+        if (starts[line] <= index) {
+            final int limit = Math.min(line + WALK_DISTANCE, nrStarts - 1);
+            while (line < limit && starts[line + 1] <= index)
+                line++;
+            if (line < nrStarts - 1 && starts[line + 1] <= index)
+                line = binarySearch(starts, nrStarts, index);
+        } else {
+            final int limit = Math.max(line - WALK_DISTANCE, 0);
+            while (line > limit && starts[line] > index)
+                line--;
+            if (starts[line] > index)
+                line = binarySearch(starts, nrStarts, index);
+        }
+
+        return line;
+    }
+
+    private static int binarySearch(final int[] starts, final int nrStarts,
+        final int index)
+    {
+        // Line starts are strictly increasing, except maybe for the sentinel
+        final int ret = Arrays.binarySearch(starts, 0, nrStarts, index);
+        return ret >= 0 ? ret : -ret - 2;
+    }
+
+    /**
+     * Find the indices following each newline in a range of the input
+     *
+     * @param input the input
+     * @param start the start index (inclusive)
+     * @param end the end index (exclusive)
+     * @return the indices, in increasing order
+     */
+    private static int[] scan(final CharSequence input, final int start,
+        final int end)
+    {
+        int[] ret = new int[Math.max(MIN_CAPACITY, (end - start) >>> 6)];
+        int count = 0;
+        int index = start;
+
+        while (index < end) {
+            if (input.charAt(index++) != '\n')
+                continue;
+            if (count == ret.length)
+                ret = Arrays.copyOf(ret, count * 2);
+            ret[count++] = index;
+        }
+
+        return Arrays.copyOf(ret, count);
     }
 
-    private int doBinarySearch(final int low, final int high, final int index)
+    private static final class ScanTask
+        extends RecursiveTask<int[]>
     {
-        // Guaranteed to always succeed at this point
-        if (high - low <= 1)
-            return lines.get(low).contains(index) ? low : high;
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence input;
+        private final int start;
+        private final int end;
+
+        private ScanTask(final CharSequence input, final int start,
+            final int end)
+        {
+            this.input = input;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected int[] compute()
+        {
+            if (end - start <= CHUNK_SIZE)
+                return scan(input, start, end);
 
-        final int middle = (low + high) / 2;
-        final Range<Integer> range = lines.get(middle);
-        if (range.contains(index))
-            return middle;
+            final int middle = (start + end) >>> 1;
+            final ScanTask left = new ScanTask(input, start, middle);
+            left.fork();
+            final int[] right = new ScanTask(input, middle, end).compute();
+            final int[] ret = left.join();
 
-        return index < range.lowerEndpoint()
-            ? doBinarySearch(low, middle, index)
-            : doBinarySearch(middle, high, index);
+            if (right.length == 0)
+                return ret;
+
+            final int[] merged = Arrays.copyOf(ret, ret.length + right.length);
+            System.arraycopy(right, 0, merged, ret.length, right.length);
+            return merged;
+        }
     }
 }
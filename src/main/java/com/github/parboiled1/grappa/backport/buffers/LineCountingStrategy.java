@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.parboiled.support.Position;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How a {@link CharSequenceInputBuffer} computes line information
+ *
+ * <p>Line information is needed to compute {@link Position}s and to extract
+ * lines, which typically only happens when reporting errors. Three strategies
+ * are available:</p>
+ *
+ * <ul>
+ *     <li>{@link #eager(Executor)} and {@link #eager()}: lines are counted in
+ *     the background as soon as the buffer is created;</li>
+ *     <li>{@link #lazy()}: lines are counted, all at once, the first time line
+ *     information is requested;</li>
+ *     <li>{@link #incremental()}: the input is only scanned as far as needed
+ *     by the queries made so far.</li>
+ * </ul>
+ *
+ * @see CharSequenceInputBuffer#CharSequenceInputBuffer(CharSequence,
+ * LineCountingStrategy)
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public abstract class LineCountingStrategy
+{
+    private static final LineCountingStrategy LAZY = new LineCountingStrategy()
+    {
+        @Override
+        LineIndex newIndex(final CharSequence input)
+        {
+            return new LazyLineIndex(input);
+        }
+    };
+
+    private static final LineCountingStrategy INCREMENTAL
+        = new LineCountingStrategy()
+    {
+        @Override
+        LineIndex newIndex(final CharSequence input)
+        {
+            return new IncrementalLineCounter(input);
+        }
+    };
+
+    /**
+     * Executor used by {@link #eager()}, created on first use
+     *
+     * <p>It has at most one thread per available processor; threads are
+     * daemon threads and terminate after one minute of inactivity.</p>
+     */
+    private static final class DefaultExecutor
+    {
+        private static final LineCountingStrategy EAGER;
+
+        static {
+            final int nrThreads = Runtime.getRuntime().availableProcessors();
+            final ThreadFactory factory = new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("linecounter-thread-%d").build();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                nrThreads, nrThreads, 1L, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(), factory);
+            executor.allowCoreThreadTimeOut(true);
+            EAGER = eager(executor);
+        }
+    }
+
+    private LineCountingStrategy()
+    {
+    }
+
+    /**
+     * Count lines in the background using a shared, bounded executor
+     *
+     * <p>This is the default strategy.</p>
+     *
+     * @return a strategy
+     */
+    public static LineCountingStrategy eager()
+    {
+        return DefaultExecutor.EAGER;
+    }
+
+    /**
+     * Count lines in the background using a given executor
+     *
+     * <p>If the executor rejects the task, lines are counted in the thread
+     * creating the buffer.</p>
+     *
+     * @param executor the executor
+     * @return a strategy
+     */
+    public static LineCountingStrategy eager(final Executor executor)
+    {
+        Preconditions.checkNotNull(executor);
+        return new LineCountingStrategy()
+        {
+            @Override
+            LineIndex newIndex(final CharSequence input)
+            {
+                return new FutureLineIndex(input, executor);
+            }
+        };
+    }
+
+    /**
+     * Count lines the first time line information is requested
+     *
+     * @return a strategy
+     */
+    public static LineCountingStrategy lazy()
+    {
+        return LAZY;
+    }
+
+    /**
+     * Only scan the input up to the highest index or line queried so far
+     *
+     * <p>Note that querying the number of lines, or the position of an index
+     * past the end of the input, scans the whole input.</p>
+     *
+     * @return a strategy
+     */
+    public static LineCountingStrategy incremental()
+    {
+        return INCREMENTAL;
+    }
+
+    abstract LineIndex newIndex(final CharSequence input);
+
+    private static final class FutureLineIndex
+        implements LineIndex
+    {
+        private final FutureTask<LineCounter> task;
+
+        private FutureLineIndex(final CharSequence input,
+            final Executor executor)
+        {
+            task = new FutureTask<>(new Callable<LineCounter>()
+            {
+                @Override
+                public LineCounter call()
+                {
+                    return new LineCounter(input, LineCounter.defaultPool());
+                }
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ignored) {
+                task.run();
+            }
+        }
+
+        @Override
+        public int getNrLines()
+        {
+            return Futures.getUnchecked(task).getNrLines();
+        }
+
+        @Override
+        public Range<Integer> getLineRange(final int lineNr)
+        {
+            return Futures.getUnchecked(task).getLineRange(lineNr);
+        }
+
+        @Override
+        public Position toPosition(final int index)
+        {
+            return Futures.getUnchecked(task).toPosition(index);
+        }
+
+        @Override
+        public int getLine(final int index)
+        {
+            return Futures.getUnchecked(task).getLine(index);
+        }
+
+        @Override
+        public int getColumn(final int index)
+        {
+            return Futures.getUnchecked(task).getColumn(index);
+        }
+    }
+
+    private static final class LazyLineIndex
+        implements LineIndex
+    {
+        private final CharSequence input;
+        private volatile LineCounter counter;
+
+        private LazyLineIndex(final CharSequence input)
+        {
+            this.input = input;
+        }
+
+        @Override
+        public int getNrLines()
+        {
+            return getCounter().getNrLines();
+        }
+
+        @Override
+        public Range<Integer> getLineRange(final int lineNr)
+        {
+            return getCounter().getLineRange(lineNr);
+        }
+
+        @Override
+        public Position toPosition(final int index)
+        {
+            return getCounter().toPosition(index);
+        }
+
+        @Override
+        public int getLine(final int index)
+        {
+            return getCounter().getLine(index);
+        }
+
+        @Override
+        public int getColumn(final int index)
+        {
+            return getCounter().getColumn(index);
+        }
+
+        private LineCounter getCounter()
+        {
+            LineCounter ret = counter;
+            if (ret != null)
+                return ret;
+            synchronized (this) {
+                ret = counter;
+                if (ret == null) {
+                    ret = new LineCounter(input, LineCounter.defaultPool());
+                    counter = ret;
+                }
+                return ret;
+            }
+        }
+    }
+}
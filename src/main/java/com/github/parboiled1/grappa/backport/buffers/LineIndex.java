@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2014 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.google.common.collect.Range;
+import org.parboiled.support.Position;
+
+/**
+ * Line information, as used by a {@link CharSequenceInputBuffer}
+ *
+ * <p>Implementations must be thread safe.</p>
+ *
+ * @see LineCountingStrategy
+ */
+interface LineIndex
+{
+    int getNrLines();
+
+    Range<Integer> getLineRange(int lineNr);
+
+    Position toPosition(int index);
+
+    int getLine(int index);
+
+    int getColumn(int index);
+}
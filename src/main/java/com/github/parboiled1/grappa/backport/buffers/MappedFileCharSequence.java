@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A {@link CharSequence} over a memory mapped file
+ *
+ * <p>The file is mapped read only and is never loaded on the heap; characters
+ * are decoded on demand. Two kinds of encodings are supported:</p>
+ *
+ * <ul>
+ *     <li>single byte encodings (US-ASCII, ISO-8859-x, etc), where the index
+ *     of a character is its byte offset in the file;</li>
+ *     <li>UTF-8.</li>
+ * </ul>
+ *
+ * <p>For UTF-8, the file is scanned once, on first use; if it only contains
+ * ASCII characters, it is then treated as a single byte encoding. Otherwise,
+ * this scan builds an index of the byte offset of one character every {@value
+ * #STRIDE}; on top of that, each thread remembers the last position it has
+ * read, which makes sequential reads cheap. Malformed sequences are decoded as
+ * U+FFFD, one byte at a time.</p>
+ *
+ * <p>The number of characters in the file must not exceed {@link
+ * Integer#MAX_VALUE}.</p>
+ *
+ * @see CharSequenceInputBuffer#fromFile(Path, Charset)
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class MappedFileCharSequence
+    implements CharSequence
+{
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1L;
+
+    private static final int STRIDE_SHIFT = 7;
+    private static final int STRIDE = 1 << STRIDE_SHIFT;
+
+    private static final char REPLACEMENT = '\ufffd';
+
+    private static final int COPY_CHUNK_SIZE = 1 << 16;
+
+    private final ByteBuffer[] segments;
+    private final long byteLength;
+    private final Charset charset;
+
+    /*
+     * Character table for single byte encodings; null for UTF-8
+     */
+    private final char[] table;
+
+    /*
+     * UTF-8 index, built on first use
+     */
+    private volatile Utf8Index index = null;
+
+    private final ThreadLocal<Cursor> cursors = new ThreadLocal<Cursor>()
+    {
+        @Override
+        protected Cursor initialValue()
+        {
+            return new Cursor();
+        }
+    };
+
+    /**
+     * Map a file
+     *
+     * @param path the path to the file
+     * @param charset the encoding of the file
+     * @return a new character sequence
+     * @throws IOException failed to map the file
+     * @throws IllegalArgumentException unsupported encoding
+     */
+    public static MappedFileCharSequence open(final Path path,
+        final Charset charset)
+        throws IOException
+    {
+        final char[] table = charset.equals(UTF_8) ? null
+            : singleByteTable(charset);
+
+        try (
+            final FileChannel channel
+                = FileChannel.open(path, StandardOpenOption.READ);
+        ) {
+            final long size = channel.size();
+            if (table != null)
+                Preconditions.checkArgument(size <= Integer.MAX_VALUE,
+                    "file too large");
+
+            final int nrSegments = (int) ((size + SEGMENT_MASK)
+                >>> SEGMENT_SHIFT);
+            final ByteBuffer[] segments = new ByteBuffer[nrSegments];
+
+            long offset = 0L;
+            for (int i = 0; i < nrSegments; i++) {
+                final long len = Math.min(size - offset, SEGMENT_MASK + 1L);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset, len);
+                offset += len;
+            }
+
+            return new MappedFileCharSequence(segments, size, charset, table);
+        }
+    }
+
+    private MappedFileCharSequence(final ByteBuffer[] segments,
+        final long byteLength, final Charset charset, final char[] table)
+    {
+        this.segments = segments;
+        this.byteLength = byteLength;
+        this.charset = charset;
+        this.table = table;
+    }
+
+    /**
+     * Return the encoding of the underlying file
+     *
+     * @return the charset
+     */
+    public Charset getCharset()
+    {
+        return charset;
+    }
+
+    /**
+     * Return the size of the underlying file, in bytes
+     *
+     * @return the size
+     */
+    public long getByteLength()
+    {
+        return byteLength;
+    }
+
+    /**
+     * Tell whether the raw content of the file is a valid encoding of this
+     * sequence in a given charset
+     *
+     * <p>This is the case if the charset is the one of the file, unless the
+     * file is not valid UTF-8.</p>
+     *
+     * @param target the charset
+     * @return true if {@link #copyBytesTo(OutputStream)} can be used
+     */
+    boolean canCopyAs(final Charset target)
+    {
+        if (!charset.equals(target))
+            return false;
+        return table != null || getIndex().wellFormed;
+    }
+
+    /**
+     * Copy the raw content of the file to an output stream
+     *
+     * @param out the output stream (not closed)
+     * @throws IOException failed to write to the stream
+     */
+    void copyBytesTo(final OutputStream out)
+        throws IOException
+    {
+        final byte[] chunk = new byte[COPY_CHUNK_SIZE];
+        ByteBuffer segment;
+        int len;
+
+        for (final ByteBuffer buffer: segments) {
+            segment = buffer.duplicate();
+            while (segment.hasRemaining()) {
+                len = Math.min(chunk.length, segment.remaining());
+                segment.get(chunk, 0, len);
+                out.write(chunk, 0, len);
+            }
+        }
+    }
+
+    @Override
+    public int length()
+    {
+        if (table != null)
+            return (int) byteLength;
+        return getIndex().length;
+    }
+
+    @Override
+    public char charAt(final int index)
+    {
+        if (table != null) {
+            if (index < 0 || index >= byteLength)
+                throw new IndexOutOfBoundsException("index: " + index);
+            return table[getByte(index) & 0xff];
+        }
+
+        final Utf8Index utf8Index = getIndex();
+        if (index < 0 || index >= utf8Index.length)
+            throw new IndexOutOfBoundsException("index: " + index);
+
+        if (utf8Index.checkpoints == null)
+            return (char) getByte(index);
+
+        final Cursor cursor = cursors.get();
+
+        int charIndex;
+        long offset;
+
+        if (index >= cursor.charIndex && index - cursor.charIndex < STRIDE) {
+            charIndex = cursor.charIndex;
+            offset = cursor.byteOffset;
+        } else {
+            final long checkpoint
+                = utf8Index.checkpoints[index >>> STRIDE_SHIFT];
+            charIndex = (index & ~(STRIDE - 1)) - (int) (checkpoint & 1L);
+            offset = checkpoint >>> 1;
+        }
+
+        long decoded;
+        int codePoint;
+        int nrChars;
+
+        while (true) {
+            decoded = decode(offset);
+            codePoint = (int) decoded;
+            nrChars = Character.charCount(codePoint);
+            if (index < charIndex + nrChars)
+                break;
+            charIndex += nrChars;
+            offset += decoded >>> 32;
+        }
+
+        cursor.charIndex = charIndex;
+        cursor.byteOffset = offset;
+
+        if (nrChars == 1)
+            return (char) codePoint;
+
+        return index == charIndex ? Character.highSurrogate(codePoint)
+            : Character.lowSurrogate(codePoint);
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end)
+    {
+        if (start < 0 || end > length() || start > end)
+            throw new IndexOutOfBoundsException();
+
+        final char[] chars = new char[end - start];
+        for (int i = start; i < end; i++)
+            chars[i - start] = charAt(i);
+
+        return new String(chars);
+    }
+
+    @Nonnull
+    @Override
+    public String toString()
+    {
+        return subSequence(0, length()).toString();
+    }
+
+    private byte getByte(final long offset)
+    {
+        return segments[(int) (offset >>> SEGMENT_SHIFT)]
+            .get((int) (offset & SEGMENT_MASK));
+    }
+
+    private Utf8Index getIndex()
+    {
+        Utf8Index ret = index;
+        if (ret != null)
+            return ret;
+
+        synchronized (this) {
+            ret = index;
+            if (ret == null) {
+                ret = buildIndex();
+                index = ret;
+            }
+        }
+
+        return ret;
+    }
+
+    /*
+     * Decode the code point at this offset; return the number of bytes in the
+     * upper 32 bits, and the code point in the lower 32 bits
+     */
+    private long decode(final long offset)
+    {
+        final int b0 = getByte(offset) & 0xff;
+
+        if (b0 < 0x80)
+            return 1L << 32 | b0;
+
+        final int len;
+        int codePoint;
+        final int min;
+
+        if (b0 >= 0xc2 && b0 < 0xe0) {
+            len = 2;
+            codePoint = b0 & 0x1f;
+            min = 0x80;
+        } else if (b0 >= 0xe0 && b0 < 0xf0) {
+            len = 3;
+            codePoint = b0 & 0x0f;
+            min = 0x800;
+        } else if (b0 >= 0xf0 && b0 < 0xf5) {
+            len = 4;
+            codePoint = b0 & 0x07;
+            min = 0x10000;
+        } else
+            return 1L << 32 | REPLACEMENT;
+
+        if (offset + len > byteLength)
+            return 1L << 32 | REPLACEMENT;
+
+        int b;
+        for (int i = 1; i < len; i++) {
+            b = getByte(offset + i) & 0xff;
+            if ((b & 0xc0) != 0x80)
+                return 1L << 32 | REPLACEMENT;
+            codePoint = codePoint << 6 | b & 0x3f;
+        }
+
+        if (codePoint < min || codePoint > Character.MAX_CODE_POINT
+            || codePoint >= Character.MIN_SURROGATE
+            && codePoint <= Character.MAX_SURROGATE)
+            return 1L << 32 | REPLACEMENT;
+
+        return (long) len << 32 | codePoint;
+    }
+
+    private Utf8Index buildIndex()
+    {
+        // First pass: check whether this is plain ASCII
+        boolean ascii = true;
+        for (long offset = 0L; offset < byteLength; offset++)
+            if (getByte(offset) < 0) {
+                ascii = false;
+                break;
+            }
+
+        if (ascii) {
+            Preconditions.checkState(byteLength <= Integer.MAX_VALUE,
+                "file too large");
+            return new Utf8Index((int) byteLength, null, true);
+        }
+
+        long[] checkpoints = new long[(int) Math.min(
+            (byteLength >>> STRIDE_SHIFT) + 1L, Integer.MAX_VALUE)];
+        int nrCheckpoints = 0;
+        boolean wellFormed = true;
+
+        long charIndex = 0L;
+        long offset = 0L;
+        long decoded;
+        int nrChars;
+        long next;
+
+        while (offset < byteLength) {
+            decoded = decode(offset);
+            nrChars = Character.charCount((int) decoded);
+            // A well formed U+FFFD takes three bytes
+            if (decoded == (1L << 32 | REPLACEMENT))
+                wellFormed = false;
+            next = charIndex + nrChars;
+            // Record a checkpoint for each multiple of STRIDE in this code
+            // point; at most one, since a code point has at most two chars
+            if (charIndex + STRIDE - 1 >>> STRIDE_SHIFT
+                != next + STRIDE - 1 >>> STRIDE_SHIFT) {
+                final long lowHalf = (charIndex & STRIDE - 1) == 0L ? 0L : 1L;
+                checkpoints[nrCheckpoints++] = offset << 1 | lowHalf;
+            }
+            charIndex = next;
+            offset += decoded >>> 32;
+        }
+
+        Preconditions.checkState(charIndex <= Integer.MAX_VALUE,
+            "file too large");
+
+        if (nrCheckpoints < checkpoints.length) {
+            final long[] tmp = new long[nrCheckpoints];
+            System.arraycopy(checkpoints, 0, tmp, 0, nrCheckpoints);
+            checkpoints = tmp;
+        }
+
+        return new Utf8Index((int) charIndex, checkpoints, wellFormed);
+    }
+
+    private static char[] singleByteTable(final Charset charset)
+    {
+        final CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        Preconditions.checkArgument(decoder.maxCharsPerByte() == 1.0f
+            && charset.newEncoder().maxBytesPerChar() == 1.0f,
+            "unsupported charset %s (must be UTF-8 or a single byte charset)",
+            charset);
+
+        final char[] table = new char[256];
+        final ByteBuffer in = ByteBuffer.allocate(1);
+        final CharBuffer out = CharBuffer.allocate(1);
+
+        for (int i = 0; i < 256; i++) {
+            in.clear();
+            in.put((byte) i).flip();
+            out.clear();
+            try {
+                decoder.reset().decode(in, out, true);
+                decoder.flush(out);
+            } catch (IllegalStateException e) {
+                throw new IllegalArgumentException(e);
+            }
+            table[i] = out.position() == 1 ? out.get(0) : REPLACEMENT;
+        }
+
+        return table;
+    }
+
+    private static final class Utf8Index
+    {
+        private final int length;
+        // null if the content is pure ASCII
+        private final long[] checkpoints;
+        // false if malformed sequences were replaced
+        private final boolean wellFormed;
+
+        private Utf8Index(final int length, final long[] checkpoints,
+            final boolean wellFormed)
+        {
+            this.length = length;
+            this.checkpoints = checkpoints;
+            this.wellFormed = wellFormed;
+        }
+    }
+
+    private static final class Cursor
+    {
+        // Start of the code point last read, and its byte offset
+        private int charIndex = Integer.MAX_VALUE;
+        private long byteOffset = 0L;
+    }
+}
@@ -21,21 +21,35 @@ import org.parboiled.MatcherContext;
 /**
  * Base class for a parsing match event
  *
+ * <p>Note that if the parse runner is configured to {@link
+ * com.github.parboiled1.grappa.backport.EventBasedParseRunner#withReusableEvents()
+ * reuse events}, an instance of this class is only valid for the duration of
+ * the listener method it is passed to: it will be pointed to another context
+ * afterwards. Listeners must therefore not retain references to events; they
+ * should extract the information they need instead.</p>
+ *
  * @param <V> type parameter of the matching context
  *
  * @see PreMatchEvent
  * @see MatchFailureEvent
  * @see MatchSuccessEvent
+ * @see MemoHitEvent
  */
 public abstract class MatchContextEvent<V>
 {
-    protected final MatcherContext<V> context;
+    private MatcherContext<V> context;
 
     protected MatchContextEvent(final MatcherContext<V> context)
     {
         this.context = context;
     }
 
+    // Only used by MatchEventPool
+    final void setContext(final MatcherContext<V> context)
+    {
+        this.context = context;
+    }
+
     /**
      * Return the context associated with this parse event
      *
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.events;
+
+import org.parboiled.MatcherContext;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Arrays;
+
+/**
+ * A pool of reusable match events, with one event of each type per context
+ * level
+ *
+ * <p>Each call to one of the methods of this class returns the event allocated
+ * for the level of the given context, after having pointed it to this context.
+ * As a result, an event is only valid until the next event of the same type is
+ * requested for the same level.</p>
+ *
+ * <p>This class is not thread safe; use one pool per parsing run.</p>
+ *
+ * @see MatchContextEvent
+ */
+@ParametersAreNonnullByDefault
+public final class MatchEventPool
+{
+    private static final int INITIAL_LEVELS = 32;
+
+    private PreMatchEvent<?>[] preMatchEvents
+        = new PreMatchEvent<?>[INITIAL_LEVELS];
+    private MatchSuccessEvent<?>[] successEvents
+        = new MatchSuccessEvent<?>[INITIAL_LEVELS];
+    private MatchFailureEvent<?>[] failureEvents
+        = new MatchFailureEvent<?>[INITIAL_LEVELS];
+    private MemoHitEvent<?>[] memoHitEvents
+        = new MemoHitEvent<?>[INITIAL_LEVELS];
+
+    /**
+     * Get the pre match event for this context's level
+     *
+     * @param context the context
+     * @param <V> type parameter of the context
+     * @return the event
+     */
+    @SuppressWarnings("unchecked")
+    public <V> PreMatchEvent<V> preMatch(final MatcherContext<V> context)
+    {
+        final int level = context.getLevel();
+        ensureLevel(level);
+
+        PreMatchEvent<V> event = (PreMatchEvent<V>) preMatchEvents[level];
+
+        if (event == null) {
+            event = new PreMatchEvent<>(context);
+            preMatchEvents[level] = event;
+        } else
+            event.setContext(context);
+
+        return event;
+    }
+
+    /**
+     * Get the match success event for this context's level
+     *
+     * @param context the context
+     * @param <V> type parameter of the context
+     * @return the event
+     */
+    @SuppressWarnings("unchecked")
+    public <V> MatchSuccessEvent<V> matchSuccess(
+        final MatcherContext<V> context)
+    {
+        final int level = context.getLevel();
+        ensureLevel(level);
+
+        MatchSuccessEvent<V> event
+            = (MatchSuccessEvent<V>) successEvents[level];
+
+        if (event == null) {
+            event = new MatchSuccessEvent<>(context);
+            successEvents[level] = event;
+        } else
+            event.setContext(context);
+
+        return event;
+    }
+
+    /**
+     * Get the match failure event for this context's level
+     *
+     * @param context the context
+     * @param <V> type parameter of the context
+     * @return the event
+     */
+    @SuppressWarnings("unchecked")
+    public <V> MatchFailureEvent<V> matchFailure(
+        final MatcherContext<V> context)
+    {
+        final int level = context.getLevel();
+        ensureLevel(level);
+
+        MatchFailureEvent<V> event
+            = (MatchFailureEvent<V>) failureEvents[level];
+
+        if (event == null) {
+            event = new MatchFailureEvent<>(context);
+            failureEvents[level] = event;
+        } else
+            event.setContext(context);
+
+        return event;
+    }
+
+    /**
+     * Get the memo hit event for this context's level
+     *
+     * @param context the context
+     * @param <V> type parameter of the context
+     * @return the event
+     */
+    @SuppressWarnings("unchecked")
+    public <V> MemoHitEvent<V> memoHit(final MatcherContext<V> context)
+    {
+        final int level = context.getLevel();
+        ensureLevel(level);
+
+        MemoHitEvent<V> event = (MemoHitEvent<V>) memoHitEvents[level];
+
+        if (event == null) {
+            event = new MemoHitEvent<>(context);
+            memoHitEvents[level] = event;
+        } else
+            event.setContext(context);
+
+        return event;
+    }
+
+    private void ensureLevel(final int level)
+    {
+        final int len = preMatchEvents.length;
+        if (level < len)
+            return;
+
+        final int newLength = Math.max(len * 2, level + 1);
+        preMatchEvents = Arrays.copyOf(preMatchEvents, newLength);
+        successEvents = Arrays.copyOf(successEvents, newLength);
+        failureEvents = Arrays.copyOf(failureEvents, newLength);
+        memoHitEvents = Arrays.copyOf(memoHitEvents, newLength);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.events;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import org.parboiled.MatcherContext;
+
+/**
+ * Event posted when the result of a match is taken from the memoization table
+ *
+ * <p>This event is posted between the {@link PreMatchEvent} and the {@link
+ * MatchSuccessEvent} or {@link MatchFailureEvent} of the match; the matcher
+ * itself is not run, and neither are its children. On success, the current
+ * index of the context is already set to the end of the match.</p>
+ *
+ * @param <V> type parameter of the matching context
+ *
+ * @see EventBasedParseRunner#withMemoization(int)
+ */
+public final class MemoHitEvent<V>
+    extends MatchContextEvent<V>
+{
+    public MemoHitEvent(final MatcherContext<V> context)
+    {
+        super(context);
+    }
+}
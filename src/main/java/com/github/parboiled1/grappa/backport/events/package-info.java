@@ -2,7 +2,7 @@
  * Events generated by an {@link
  * com.github.parboiled1.grappa.backport.EventBasedParseRunner}
  *
- * <p>You have hooks at five points in the parsing process:</p>
+ * <p>You have hooks at six points in the parsing process:</p>
  *
  * <ul>
  *     <li>before the parsing starts ({@link
@@ -13,6 +13,9 @@
  *     com.github.parboiled1.grappa.backport.events.MatchSuccessEvent});</li>
  *     <li>after a match has completed, if it fails ({@link
  *     com.github.parboiled1.grappa.backport.events.MatchFailureEvent});</li>
+ *     <li>when the result of a match is taken from the memoization table, if
+ *     enabled ({@link
+ *     com.github.parboiled1.grappa.backport.events.MemoHitEvent});</li>
  *     <li>and finally, after the parsing has completed ({@link
  *     com.github.parboiled1.grappa.backport.events.PostParseEvent}).</li>
  * </ul>
@@ -0,0 +1,242 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A node writer delegating the actual encoding and writing to a background
+ * thread
+ *
+ * <p>The calling thread only copies node fields into a preallocated ring
+ * buffer; a dedicated thread reads them back and hands them over to the
+ * delegate writer. There must be only one calling thread.</p>
+ *
+ * <p>Either side spins for a while when it has to wait for the other, then
+ * parks until the other side wakes it up; an idle background thread therefore
+ * uses no CPU.</p>
+ *
+ * <p>{@link #flush()} and {@link #close()} wait for all pending nodes to be
+ * written; closing this writer also stops the background thread and closes the
+ * delegate. Should the calling thread die without closing this writer, the
+ * background thread stops on its own.</p>
+ */
+@NotThreadSafe
+final class AsyncNodeWriter
+    implements NodeWriter
+{
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    // Number of longs per node
+    private static final int SLOT_SIZE = 4;
+
+    private static final int SPINS = 100;
+
+    /*
+     * The producer cannot wake up the consumer once it is dead; the consumer
+     * therefore checks that the producer is alive this often while parked
+     */
+    private static final long PRODUCER_CHECK_NANOS = 100_000_000L;
+
+    private final NodeWriter delegate;
+    private final Backpressure backpressure;
+    private final Thread thread;
+    private final Thread producer;
+
+    /*
+     * Ring buffer; tail is written by the producer only, head by the consumer
+     * only
+     */
+    private final long[] ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /*
+     * Set by either side before it parks. A side which parks sets its flag,
+     * then checks the index of the other side again; the other side publishes
+     * its index, then unparks this side if the flag is set. Both the flag and
+     * the index are volatile, so at least one of them sees the write of the
+     * other.
+     */
+    private volatile boolean consumerParked = false;
+    private volatile boolean producerParked = false;
+
+    /*
+     * Producer side state
+     */
+    private long producerTail = 0L;
+    private long headCache = 0L;
+    private long dropped = 0L;
+
+    private volatile boolean closed = false;
+    private volatile IOException failure = null;
+
+    AsyncNodeWriter(final NodeWriter delegate, final int capacity,
+        final Backpressure backpressure)
+    {
+        Preconditions.checkArgument(capacity > 0 && capacity <= 1 << 24,
+            "capacity must be between 1 and 2^24");
+        this.delegate = delegate;
+        this.backpressure = backpressure;
+
+        // Round up to the next power of two
+        final int size = capacity == 1 ? 1
+            : Integer.highestOneBit(capacity - 1) << 1;
+        ring = new long[size * SLOT_SIZE];
+        mask = size - 1;
+
+        producer = Thread.currentThread();
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                consume();
+            }
+        }, "trace-writer-" + THREAD_COUNTER.getAndIncrement());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void write(final int parentId, final int nodeId, final int level,
+        final boolean success, final int matcherId, final int startIndex,
+        final int endIndex, final long time)
+        throws IOException
+    {
+        final long capacity = mask + 1;
+
+        if (producerTail - headCache >= capacity) {
+            headCache = head.get();
+            if (producerTail - headCache >= capacity) {
+                if (backpressure == Backpressure.DROP) {
+                    dropped++;
+                    return;
+                }
+                awaitHead(producerTail - capacity + 1);
+            }
+        }
+
+        final int base = (int) (producerTail & mask) * SLOT_SIZE;
+        ring[base] = (long) parentId << 32 | nodeId & 0xffffffffL;
+        ring[base + 1] = (long) level << 32
+            | (matcherId << 1 | (success ? 1 : 0)) & 0xffffffffL;
+        ring[base + 2] = (long) startIndex << 32 | endIndex & 0xffffffffL;
+        ring[base + 3] = time;
+
+        producerTail++;
+        tail.set(producerTail);
+        if (consumerParked)
+            LockSupport.unpark(thread);
+    }
+
+    long getDropped()
+    {
+        return dropped;
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        awaitHead(producerTail);
+        delegate.flush();
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for writer", e);
+        }
+
+        if (failure != null)
+            throw failure;
+
+        delegate.close();
+    }
+
+    private void awaitHead(final long target)
+        throws IOException
+    {
+        int spins = 0;
+        while ((headCache = head.get()) < target) {
+            if (failure != null)
+                throw failure;
+            if (!thread.isAlive())
+                throw new IOException("node writer thread died");
+            if (spins++ < SPINS)
+                continue;
+            producerParked = true;
+            if (head.get() < target && failure == null && thread.isAlive())
+                LockSupport.park(this);
+            producerParked = false;
+        }
+    }
+
+    private void consume()
+    {
+        long consumerHead = 0L;
+        int spins = 0;
+
+        try {
+            while (true) {
+                final long available = tail.get();
+
+                if (consumerHead == available) {
+                    if (closed && tail.get() == consumerHead)
+                        return;
+                    if (!producer.isAlive())
+                        return;
+                    if (spins++ < SPINS)
+                        continue;
+                    consumerParked = true;
+                    if (tail.get() == consumerHead && !closed)
+                        LockSupport.parkNanos(this, PRODUCER_CHECK_NANOS);
+                    consumerParked = false;
+                    continue;
+                }
+
+                spins = 0;
+
+                while (consumerHead < available) {
+                    final int base = (int) (consumerHead & mask) * SLOT_SIZE;
+                    final long ids = ring[base];
+                    final long levelAndMatcher = ring[base + 1];
+                    final long indices = ring[base + 2];
+                    final int matcher = (int) levelAndMatcher;
+                    delegate.write((int) (ids >> 32), (int) ids,
+                        (int) (levelAndMatcher >> 32), (matcher & 1) != 0,
+                        matcher >>> 1, (int) (indices >> 32), (int) indices,
+                        ring[base + 3]);
+                    consumerHead++;
+                }
+
+                head.set(consumerHead);
+                if (producerParked)
+                    LockSupport.unpark(producer);
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("node writer failure", e);
+        } finally {
+            // The producer may be waiting for room, or for a flush
+            LockSupport.unpark(producer);
+        }
+    }
+}
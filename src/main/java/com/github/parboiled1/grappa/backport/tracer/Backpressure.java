@@ -0,0 +1,28 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+/**
+ * What to do when the parsing thread produces nodes faster than the
+ * background writer can write them
+ *
+ * @see TracingListener#withAsyncWriter(int, Backpressure)
+ */
+public enum Backpressure
+{
+    /**
+     * Wait for the writer to catch up
+     *
+     * <p>No node is lost, at the expense of slowing down the parser.</p>
+     */
+    BLOCK,
+    /**
+     * Drop the node and count it
+     *
+     * <p>The parser never waits; however, the trace file will be missing
+     * nodes, and may contain nodes whose parent is missing. The number of
+     * dropped nodes is recorded in the trace file.</p>
+     *
+     * @see TracingListener#getDroppedNodes()
+     */
+    DROP,
+    ;
+}
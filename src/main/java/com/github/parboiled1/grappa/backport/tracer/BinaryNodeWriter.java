@@ -0,0 +1,79 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Node writer for {@link StandardNodeFormat#BINARY}
+ *
+ * <p>Each record is a sequence of seven variable length integers (seven bits
+ * per byte, least significant group first, the high bit of a byte set if more
+ * bytes follow). "Signed" below means that the value is zigzag encoded first.
+ * </p>
+ *
+ * <ul>
+ *     <li>node id, minus the node id of the previous record (signed);</li>
+ *     <li>node id, minus the parent node id (signed);</li>
+ *     <li>level;</li>
+ *     <li>matcher id shifted one bit to the left, plus 1 if the match is
+ *     successful;</li>
+ *     <li>start index, minus the start index of the previous record (signed);
+ *     </li>
+ *     <li>end index, minus the start index (signed);</li>
+ *     <li>time, in nanoseconds.</li>
+ * </ul>
+ *
+ * <p>For the first record, "previous" values are 0.</p>
+ */
+final class BinaryNodeWriter
+    extends ChannelNodeWriter
+{
+    private int previousNodeId = 0;
+    private int previousStartIndex = 0;
+
+    BinaryNodeWriter(final WritableByteChannel channel)
+    {
+        super(channel);
+    }
+
+    @Override
+    protected void encode(final int parentId, final int nodeId,
+        final int level, final boolean success, final int matcherId,
+        final int startIndex, final int endIndex, final long time)
+    {
+        putVarInt(zigzag(nodeId - previousNodeId));
+        putVarInt(zigzag(nodeId - parentId));
+        putVarInt(level);
+        putVarInt(matcherId << 1 | (success ? 1 : 0));
+        putVarInt(zigzag(startIndex - previousStartIndex));
+        putVarInt(zigzag(endIndex - startIndex));
+        putVarLong(time);
+
+        previousNodeId = nodeId;
+        previousStartIndex = startIndex;
+    }
+
+    private static int zigzag(final int n)
+    {
+        return n << 1 ^ n >> 31;
+    }
+
+    private void putVarInt(final int value)
+    {
+        int n = value;
+        while ((n & ~0x7f) != 0) {
+            buffer.put((byte) (n & 0x7f | 0x80));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+
+    private void putVarLong(final long value)
+    {
+        long n = value;
+        while ((n & ~0x7fL) != 0L) {
+            buffer.put((byte) (n & 0x7fL | 0x80L));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+}
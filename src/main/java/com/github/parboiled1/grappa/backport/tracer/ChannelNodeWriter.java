@@ -0,0 +1,61 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base class for node writers over a {@link WritableByteChannel}
+ *
+ * <p>Records are encoded into a {@link ByteBuffer} which is written to the
+ * channel when full.</p>
+ */
+abstract class ChannelNodeWriter
+    implements NodeWriter
+{
+    private static final int BUFSIZE = 64 * 1024;
+
+    // The maximum size of a record, whatever the format
+    protected static final int MAX_RECORD_SIZE = 128;
+
+    protected final ByteBuffer buffer = ByteBuffer.allocate(BUFSIZE);
+    private final WritableByteChannel channel;
+
+    protected ChannelNodeWriter(final WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    @Override
+    public final void write(final int parentId, final int nodeId,
+        final int level, final boolean success, final int matcherId,
+        final int startIndex, final int endIndex, final long time)
+        throws IOException
+    {
+        if (buffer.remaining() < MAX_RECORD_SIZE)
+            flush();
+        encode(parentId, nodeId, level, success, matcherId, startIndex,
+            endIndex, time);
+    }
+
+    protected abstract void encode(int parentId, int nodeId, int level,
+        boolean success, int matcherId, int startIndex, int endIndex,
+        long time);
+
+    @Override
+    public final void flush()
+        throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public final void close()
+        throws IOException
+    {
+        flush();
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Node writer for {@link StandardNodeFormat#CSV}
+ *
+ * <p>Numbers are written as ASCII digits directly into the output buffer.</p>
+ */
+final class CsvNodeWriter
+    extends ChannelNodeWriter
+{
+    private final byte[] digits = new byte[20];
+
+    CsvNodeWriter(final WritableByteChannel channel)
+    {
+        super(channel);
+    }
+
+    @Override
+    protected void encode(final int parentId, final int nodeId,
+        final int level, final boolean success, final int matcherId,
+        final int startIndex, final int endIndex, final long time)
+    {
+        // parent;id;level;success;matcherId;start;end;time
+        putNumber(parentId);
+        buffer.put((byte) ';');
+        putNumber(nodeId);
+        buffer.put((byte) ';');
+        putNumber(level);
+        buffer.put((byte) ';');
+        buffer.put((byte) (success ? '1' : '0'));
+        buffer.put((byte) ';');
+        putNumber(matcherId);
+        buffer.put((byte) ';');
+        putNumber(startIndex);
+        buffer.put((byte) ';');
+        putNumber(endIndex);
+        buffer.put((byte) ';');
+        putNumber(time);
+        buffer.put((byte) '\n');
+    }
+
+    private void putNumber(final long value)
+    {
+        long n = value;
+        if (n < 0) {
+            buffer.put((byte) '-');
+            n = -n;
+        }
+
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (int) (n % 10L));
+            n /= 10L;
+        } while (n != 0L);
+
+        buffer.put(digits, i, digits.length - i);
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.type.GrammarIndex;
+import com.github.parboiled1.grappa.backport.type.MatcherType;
+import com.github.parboiled1.grappa.backport.type.MatcherTypeProvider;
+import org.parboiled.matchers.Matcher;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Matcher ids, as written in traces and reports
+ *
+ * <p>Ids are those of a {@link GrammarIndex}; matchers which are not part of
+ * the index (which should not happen in practice) are registered on the fly
+ * and given ids following those of the index.</p>
+ */
+@ParametersAreNonnullByDefault
+final class MatcherRegistry
+{
+    private final GrammarIndex grammar;
+    private final int grammarSize;
+
+    private final Map<Matcher, Integer> extraIds = new IdentityHashMap<>();
+    private final List<MatcherDescriptor> extraDescriptors = new ArrayList<>();
+    private final List<Matcher> extraMatchers = new ArrayList<>();
+
+    MatcherRegistry(final GrammarIndex grammar)
+    {
+        this.grammar = grammar;
+        grammarSize = grammar.size();
+    }
+
+    @SuppressWarnings({ "AutoBoxing", "AutoUnboxing" })
+    int getId(final Matcher matcher)
+    {
+        final int id = grammar.getId(matcher);
+        if (id >= 0)
+            return id;
+
+        final Integer extraId = extraIds.get(matcher);
+        if (extraId != null)
+            return extraId;
+
+        final int ret = grammarSize + extraDescriptors.size();
+        final MatcherType type = MatcherTypeProvider.getDefault()
+            .getType(matcher.getClass());
+        extraIds.put(matcher, ret);
+        extraDescriptors.add(new MatcherDescriptor(ret, type, matcher));
+        extraMatchers.add(matcher);
+        return ret;
+    }
+
+    int size()
+    {
+        return grammarSize + extraDescriptors.size();
+    }
+
+    Matcher getMatcher(final int id)
+    {
+        if (id >= grammarSize)
+            return extraMatchers.get(id - grammarSize);
+        return grammar.getMatcher(id);
+    }
+
+    GrammarIndex getGrammar()
+    {
+        return grammar;
+    }
+
+    boolean hasExtraMatchers()
+    {
+        return !extraMatchers.isEmpty();
+    }
+
+    /*
+     * Tell whether the grammar of another registry has the same structure as
+     * the grammar of this registry, in which case grammar matchers have the
+     * same ids in both registries; the grammars may be built by different
+     * parser instances
+     */
+    boolean hasSameGrammar(final MatcherRegistry other)
+    {
+        final GrammarIndex otherGrammar = other.grammar;
+        if (otherGrammar == grammar)
+            return true;
+
+        if (otherGrammar.size() != grammarSize)
+            return false;
+
+        Matcher m1, m2;
+
+        for (int id = 0; id < grammarSize; id++) {
+            m1 = grammar.getMatcher(id);
+            m2 = otherGrammar.getMatcher(id);
+            if (m1.getClass() != m2.getClass())
+                return false;
+            if (!Objects.equals(m1.getLabel(), m2.getLabel()))
+                return false;
+        }
+
+        return true;
+    }
+
+    MatcherDescriptor getDescriptor(final int id)
+    {
+        if (id >= grammarSize)
+            return extraDescriptors.get(id - grammarSize);
+        return new MatcherDescriptor(id, grammar.getType(id),
+            grammar.getMatcher(id));
+    }
+}
@@ -0,0 +1,41 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import javax.annotation.Nonnull;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A format for the parsing nodes written by a {@link TracingListener}
+ *
+ * <p>A format has a name for its entry in the trace file and a version number;
+ * this version number is written in the trace information so that the debugger
+ * can select the appropriate reader.</p>
+ *
+ * @see StandardNodeFormat
+ * @see TracingListener#withNodeFormat(NodeFormat)
+ */
+public interface NodeFormat
+{
+    /**
+     * Return the name of the entry for parsing nodes in the trace file
+     *
+     * @return the entry name
+     */
+    @Nonnull
+    String getEntryName();
+
+    /**
+     * Return the version of this format
+     *
+     * @return the version
+     */
+    int getVersion();
+
+    /**
+     * Create a new writer for this format
+     *
+     * @param channel the channel to write to
+     * @return a new writer
+     */
+    @Nonnull
+    NodeWriter newWriter(@Nonnull WritableByteChannel channel);
+}
@@ -0,0 +1,34 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A writer of parsing nodes
+ *
+ * <p>Closing a writer flushes all pending data but does not close the
+ * underlying output.</p>
+ *
+ * @see NodeFormat#newWriter(java.nio.channels.WritableByteChannel)
+ */
+public interface NodeWriter
+    extends Closeable, Flushable
+{
+    /**
+     * Write one parsing node
+     *
+     * @param parentId the id of the parent node (-1 for the root node)
+     * @param nodeId the id of this node
+     * @param level the level of this node
+     * @param success whether the match was successful
+     * @param matcherId the id of the matcher for this node
+     * @param startIndex the start index of the match
+     * @param endIndex the end index of the match
+     * @param time the time spent in this match, in nanoseconds
+     * @throws IOException failed to write the node
+     */
+    void write(int parentId, int nodeId, int level, boolean success,
+        int matcherId, int startIndex, int endIndex, long time)
+        throws IOException;
+}
@@ -0,0 +1,301 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.ParseRunnerListener;
+import com.github.parboiled1.grappa.backport.events.MatchFailureEvent;
+import com.github.parboiled1.grappa.backport.events.MatchSuccessEvent;
+import com.github.parboiled1.grappa.backport.events.PostParseEvent;
+import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
+import com.github.parboiled1.grappa.backport.events.PreParseEvent;
+import com.github.parboiled1.grappa.backport.type.GrammarIndex;
+import com.github.parboiled1.grappa.exceptions.GrappaException;
+import com.google.common.base.Preconditions;
+import org.parboiled.MatcherContext;
+import org.parboiled.matchers.Matcher;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A listener collecting per matcher statistics
+ *
+ * <p>Unlike {@link TracingListener}, this listener does not record individual
+ * parsing nodes; it only maintains, for each matcher:</p>
+ *
+ * <ul>
+ *     <li>the number of invocations, successes and failures,</li>
+ *     <li>the cumulative time spent in the matcher, including its children,
+ *     </li>
+ *     <li>the time spent in the matcher itself, excluding its children,</li>
+ *     <li>the number of characters consumed by successful matches.</li>
+ * </ul>
+ *
+ * <p>Its memory usage is therefore proportional to the number of matchers in
+ * the grammar, and not to the size of the input. Statistics accumulate over
+ * all parsing runs this listener is registered for; statistics of several
+ * listeners can also be {@link #merge(ProfilingListener) merged}.</p>
+ *
+ * <p>If built with a path, a report is written to this path after each parsing
+ * run (see {@link #writeReport(Appendable)} for the format).</p>
+ *
+ * <p>Note that the cumulative time of recursive matchers counts nested
+ * invocations more than once.</p>
+ *
+ * @param <V> parameter type of the parser
+ *
+ * @see EventBasedParseRunner#registerListener(ParseRunnerListener)
+ */
+@ParametersAreNonnullByDefault
+public final class ProfilingListener<V>
+    extends ParseRunnerListener<V>
+{
+    private static final int INITIAL_MATCHERS = 64;
+    private static final int INITIAL_LEVELS = 32;
+
+    @Nullable
+    private final Path reportPath;
+
+    /*
+     * Matcher ids; set when the first parsing run starts
+     */
+    @Nullable
+    private MatcherRegistry matchers = null;
+
+    /*
+     * Per matcher statistics, indexed by matcher id
+     */
+    private long[] invocations = new long[INITIAL_MATCHERS];
+    private long[] successes = new long[INITIAL_MATCHERS];
+    private long[] totalNanos = new long[INITIAL_MATCHERS];
+    private long[] selfNanos = new long[INITIAL_MATCHERS];
+    private long[] consumedChars = new long[INITIAL_MATCHERS];
+
+    /*
+     * Data collected in pre match events, indexed by level
+     */
+    private int[] levelMatcherIds = new int[INITIAL_LEVELS];
+    private int[] levelIndices = new int[INITIAL_LEVELS];
+    private long[] levelTimes = new long[INITIAL_LEVELS];
+    private long[] levelChildNanos = new long[INITIAL_LEVELS];
+
+    private final StringBuilder sb = new StringBuilder();
+
+    /**
+     * Build a listener which does not write a report
+     *
+     * @see #writeReport(Appendable)
+     */
+    public ProfilingListener()
+    {
+        reportPath = null;
+    }
+
+    /**
+     * Build a listener writing a report after each parsing run
+     *
+     * @param reportPath the path to the report; it is overwritten each time
+     */
+    public ProfilingListener(final Path reportPath)
+    {
+        this.reportPath = reportPath;
+    }
+
+    @Override
+    public void beforeParse(final PreParseEvent<V> event)
+    {
+        if (matchers != null)
+            return;
+
+        matchers = new MatcherRegistry(
+            GrammarIndex.of(event.getContext().getMatcher()));
+        ensureMatchers(matchers.size());
+    }
+
+    @Override
+    public void beforeMatch(final PreMatchEvent<V> event)
+    {
+        final MatcherContext<V> context = event.getContext();
+        final Matcher matcher = context.getMatcher();
+        final int id = matchers.getId(matcher);
+        ensureMatchers(id + 1);
+
+        final int level = context.getLevel();
+        ensureLevel(level);
+
+        levelMatcherIds[level] = id;
+        levelIndices[level] = context.getCurrentIndex();
+        levelChildNanos[level] = 0L;
+        levelTimes[level] = System.nanoTime();
+    }
+
+    @Override
+    public void matchSuccess(final MatchSuccessEvent<V> event)
+    {
+        final long endTime = System.nanoTime();
+        final MatcherContext<V> context = event.getContext();
+        final int level = context.getLevel();
+        final int id = levelMatcherIds[level];
+
+        successes[id]++;
+        consumedChars[id] += context.getCurrentIndex() - levelIndices[level];
+        matchEnd(id, level, endTime);
+    }
+
+    @Override
+    public void matchFailure(final MatchFailureEvent<V> event)
+    {
+        final long endTime = System.nanoTime();
+        final int level = event.getContext().getLevel();
+
+        matchEnd(levelMatcherIds[level], level, endTime);
+    }
+
+    @Override
+    public void afterParse(final PostParseEvent<V> event)
+    {
+        if (reportPath == null)
+            return;
+
+        try (
+            final BufferedWriter writer
+                = Files.newBufferedWriter(reportPath, UTF_8);
+        ) {
+            writeReport(writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new GrappaException("failed to write profiling report", e);
+        }
+    }
+
+    /**
+     * Add the statistics of another listener to the statistics of this one
+     *
+     * <p>This allows to aggregate the statistics of listeners registered on
+     * several runners of the same grammar, for instance the per worker runners
+     * of a {@link com.github.parboiled1.grappa.backport.BatchParseRunner}.
+     * Runners need not share the same rule instances: matchers are identified
+     * by their ids, which only depend on the structure of the grammar. Neither
+     * listener must be in use while merging.</p>
+     *
+     * @param other the other listener
+     * @throws IllegalArgumentException the other listener is this listener,
+     * or it profiled a grammar with a different structure
+     */
+    public void merge(final ProfilingListener<?> other)
+    {
+        Preconditions.checkArgument(other != this,
+            "cannot merge a listener with itself");
+
+        final MatcherRegistry otherMatchers = other.matchers;
+        if (otherMatchers == null)
+            return;
+
+        final GrammarIndex grammar = otherMatchers.getGrammar();
+        if (matchers == null) {
+            matchers = new MatcherRegistry(grammar);
+            ensureMatchers(matchers.size());
+        } else
+            Preconditions.checkArgument(matchers.hasSameGrammar(otherMatchers),
+                "cannot merge statistics of different grammars");
+
+        final int grammarSize = grammar.size();
+        final int nrMatchers = otherMatchers.size();
+        int id;
+
+        for (int otherId = 0; otherId < nrMatchers; otherId++) {
+            id = otherId < grammarSize ? otherId
+                : matchers.getId(otherMatchers.getMatcher(otherId));
+            ensureMatchers(id + 1);
+            invocations[id] += other.invocations[otherId];
+            successes[id] += other.successes[otherId];
+            totalNanos[id] += other.totalNanos[otherId];
+            selfNanos[id] += other.selfNanos[otherId];
+            consumedChars[id] += other.consumedChars[otherId];
+        }
+    }
+
+    /**
+     * Write the current statistics
+     *
+     * <p>The report has one line per matcher, with semicolon separated fields:
+     * matcher id, matcher class, matcher type, matcher label, invocations,
+     * successes, failures, cumulative time (nanoseconds), self time
+     * (nanoseconds), characters consumed. Matcher ids are assigned in the same
+     * way as they are in traces, and all matchers of the grammar are listed,
+     * including those which have never been invoked.</p>
+     *
+     * @param out the output
+     * @throws IOException failed to write to the output
+     */
+    public void writeReport(final Appendable out)
+        throws IOException
+    {
+        if (matchers == null)
+            return;
+
+        final int nrMatchers = matchers.size();
+        MatcherDescriptor descriptor;
+
+        for (int id = 0; id < nrMatchers; id++) {
+            descriptor = matchers.getDescriptor(id);
+            sb.setLength(0);
+            sb.append(id).append(';')
+                .append(descriptor.getClassName()).append(';')
+                .append(descriptor.getType()).append(';')
+                .append(descriptor.getName()).append(';')
+                .append(invocations[id]).append(';')
+                .append(successes[id]).append(';')
+                .append(invocations[id] - successes[id]).append(';')
+                .append(totalNanos[id]).append(';')
+                .append(selfNanos[id]).append(';')
+                .append(consumedChars[id]).append('\n');
+            out.append(sb);
+        }
+    }
+
+    private void matchEnd(final int id, final int level, final long endTime)
+    {
+        final long elapsed = endTime - levelTimes[level];
+
+        invocations[id]++;
+        totalNanos[id] += elapsed;
+        selfNanos[id] += elapsed - levelChildNanos[level];
+
+        if (level > 0)
+            levelChildNanos[level - 1] += elapsed;
+    }
+
+    private void ensureMatchers(final int nrMatchers)
+    {
+        final int len = invocations.length;
+        if (nrMatchers <= len)
+            return;
+
+        final int newLength = Math.max(len * 2, nrMatchers);
+        invocations = Arrays.copyOf(invocations, newLength);
+        successes = Arrays.copyOf(successes, newLength);
+        totalNanos = Arrays.copyOf(totalNanos, newLength);
+        selfNanos = Arrays.copyOf(selfNanos, newLength);
+        consumedChars = Arrays.copyOf(consumedChars, newLength);
+    }
+
+    private void ensureLevel(final int level)
+    {
+        final int len = levelIndices.length;
+        if (level < len)
+            return;
+
+        final int newLength = Math.max(len * 2, level + 1);
+        levelMatcherIds = Arrays.copyOf(levelMatcherIds, newLength);
+        levelIndices = Arrays.copyOf(levelIndices, newLength);
+        levelTimes = Arrays.copyOf(levelTimes, newLength);
+        levelChildNanos = Arrays.copyOf(levelChildNanos, newLength);
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import org.parboiled.matchers.Matcher;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A policy to limit what a {@link TracingListener} records
+ *
+ * <p>Policies are immutable; you start from {@link #traceAll()} and refine it.
+ * Three criteria are available, and can be combined:</p>
+ *
+ * <ul>
+ *     <li>{@link #everyNthParse(int)}: only trace one parsing run in N; the
+ *     decision is made when the run starts. Since one tracing listener only
+ *     ever traces one run, share the same policy instance between all the
+ *     listeners you create.</li>
+ *     <li>{@link #subtreesMatching(Predicate)}: only record nodes belonging to
+ *     the subtree of a node whose matcher matches a predicate;</li>
+ *     <li>{@link #maxLevel(int)}: only record nodes at or above a given level.
+ *     </li>
+ * </ul>
+ *
+ * <p>Whatever the criteria, the ancestors of a recorded node are always
+ * recorded as well, and node ids in traces are dense; the trace therefore
+ * remains a valid tree.</p>
+ *
+ * @see TracingListener#withSamplingPolicy(SamplingPolicy)
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class SamplingPolicy
+{
+    private static final SamplingPolicy TRACE_ALL
+        = new SamplingPolicy(1, new AtomicLong(), null, Integer.MAX_VALUE);
+
+    private final int parseInterval;
+    private final AtomicLong parseCounter;
+    @Nullable
+    private final Predicate<? super Matcher> subtreeRoots;
+    private final int maxLevel;
+
+    private SamplingPolicy(final int parseInterval,
+        final AtomicLong parseCounter,
+        @Nullable final Predicate<? super Matcher> subtreeRoots,
+        final int maxLevel)
+    {
+        this.parseInterval = parseInterval;
+        this.parseCounter = parseCounter;
+        this.subtreeRoots = subtreeRoots;
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Return a policy recording everything
+     *
+     * @return a policy
+     */
+    public static SamplingPolicy traceAll()
+    {
+        return TRACE_ALL;
+    }
+
+    /**
+     * Return a copy of this policy tracing only one parsing run in N
+     *
+     * <p>The first parsing run is always traced.</p>
+     *
+     * @param n the interval between traced runs
+     * @return a new policy
+     */
+    public SamplingPolicy everyNthParse(final int n)
+    {
+        Preconditions.checkArgument(n > 0, "interval must be positive");
+        return new SamplingPolicy(n, new AtomicLong(), subtreeRoots, maxLevel);
+    }
+
+    /**
+     * Return a copy of this policy recording only subtrees whose root matcher
+     * matches a predicate
+     *
+     * @param predicate the predicate
+     * @return a new policy
+     */
+    public SamplingPolicy subtreesMatching(
+        final Predicate<? super Matcher> predicate)
+    {
+        Preconditions.checkNotNull(predicate);
+        return new SamplingPolicy(parseInterval, parseCounter, predicate,
+            maxLevel);
+    }
+
+    /**
+     * Return a copy of this policy recording only nodes at or above a given
+     * level
+     *
+     * <p>The level of the root node is 0.</p>
+     *
+     * @param level the maximum level
+     * @return a new policy
+     */
+    public SamplingPolicy maxLevel(final int level)
+    {
+        Preconditions.checkArgument(level >= 0, "level must not be negative");
+        return new SamplingPolicy(parseInterval, parseCounter, subtreeRoots,
+            level);
+    }
+
+    boolean sampleParse()
+    {
+        return parseInterval == 1
+            || parseCounter.getAndIncrement() % parseInterval == 0L;
+    }
+
+    boolean hasSubtreeRoots()
+    {
+        return subtreeRoots != null;
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    boolean isSubtreeRoot(final Matcher matcher)
+    {
+        return subtreeRoots.apply(matcher);
+    }
+
+    int getMaxLevel()
+    {
+        return maxLevel;
+    }
+}
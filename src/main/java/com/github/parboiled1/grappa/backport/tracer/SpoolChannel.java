@@ -0,0 +1,126 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A channel holding written data until it is copied elsewhere
+ *
+ * <p>Data is held in memory up to a given size, past which it is moved to a
+ * temporary file. {@link #reset()} discards the data (and deletes the file, if
+ * any), so that the channel can be reused.</p>
+ */
+@ParametersAreNonnullByDefault
+final class SpoolChannel
+    implements WritableByteChannel
+{
+    private static final int INITIAL_SIZE = 8192;
+
+    private final int maxMemory;
+
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int size = 0;
+
+    @Nullable
+    private Path file = null;
+    @Nullable
+    private FileChannel fileChannel = null;
+
+    SpoolChannel(final int maxMemory)
+    {
+        this.maxMemory = maxMemory;
+    }
+
+    @Override
+    public int write(final ByteBuffer src)
+        throws IOException
+    {
+        final int len = src.remaining();
+
+        if (fileChannel == null && size + len > maxMemory)
+            spill();
+
+        if (fileChannel != null) {
+            while (src.hasRemaining())
+                fileChannel.write(src);
+            return len;
+        }
+
+        if (size + len > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + len));
+        src.get(data, size, len);
+        size += len;
+        return len;
+    }
+
+    /**
+     * Copy all data written so far to an output stream
+     *
+     * @param out the output stream (not closed)
+     * @throws IOException failed to read the spooled data, or to write it
+     */
+    void transferTo(final OutputStream out)
+        throws IOException
+    {
+        if (fileChannel == null) {
+            out.write(data, 0, size);
+            return;
+        }
+
+        Files.copy(file, out);
+    }
+
+    /**
+     * Discard all data written so far
+     *
+     * @throws IOException failed to delete the temporary file
+     */
+    void reset()
+        throws IOException
+    {
+        size = 0;
+        if (fileChannel == null)
+            return;
+
+        try {
+            fileChannel.close();
+            Files.deleteIfExists(file);
+        } finally {
+            fileChannel = null;
+            file = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        reset();
+    }
+
+    private void spill()
+        throws IOException
+    {
+        file = Files.createTempFile("trace", ".spool");
+        fileChannel = FileChannel.open(file, StandardOpenOption.WRITE);
+        final ByteBuffer buf = ByteBuffer.wrap(data, 0, size);
+        while (buf.hasRemaining())
+            fileChannel.write(buf);
+        size = 0;
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import javax.annotation.Nonnull;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Standard node formats
+ */
+public enum StandardNodeFormat
+    implements NodeFormat
+{
+    /**
+     * Text format
+     *
+     * <p>One line per node, with semicolon separated fields: parent id, node
+     * id, level, success (1 or 0), matcher id, start index, end index, time.
+     * </p>
+     */
+    CSV("nodes.csv", 1)
+    {
+        @Nonnull
+        @Override
+        public NodeWriter newWriter(@Nonnull final WritableByteChannel channel)
+        {
+            return new CsvNodeWriter(channel);
+        }
+    },
+    /**
+     * Compact binary format
+     *
+     * <p>See {@link BinaryNodeWriter} for a description of the records.</p>
+     */
+    BINARY("nodes.bin", 2)
+    {
+        @Nonnull
+        @Override
+        public NodeWriter newWriter(@Nonnull final WritableByteChannel channel)
+        {
+            return new BinaryNodeWriter(channel);
+        }
+    },
+    ;
+
+    private final String entryName;
+    private final int version;
+
+    StandardNodeFormat(final String entryName, final int version)
+    {
+        this.entryName = entryName;
+        this.version = version;
+    }
+
+    @Nonnull
+    @Override
+    public final String getEntryName()
+    {
+        return entryName;
+    }
+
+    @Override
+    public final int getVersion()
+    {
+        return version;
+    }
+}
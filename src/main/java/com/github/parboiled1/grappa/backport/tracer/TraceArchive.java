@@ -0,0 +1,166 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A trace file holding the traces of several parsing runs
+ *
+ * <p>An archive is written to by {@link TracingListener}s {@link
+ * TracingListener#TracingListener(TraceArchive) built} with this archive; such
+ * listeners can be used for any number of parsing runs, and any number of them
+ * can write to the same archive from different threads. The archive is a zip
+ * file with the following entries:</p>
+ *
+ * <ul>
+ *     <li>{@code matchers.csv}: the matchers of the grammar, shared by all
+ *     parsing runs of this grammar;</li>
+ *     <li>{@code index.csv}: one line per parsing run, with the number of the
+ *     run followed by the fields of its {@code info.csv};</li>
+ *     <li>{@code parses/<n>/}: the entries of the trace of run {@code n}
+ *     (counting from 0), as they are in a single trace file, except that
+ *     {@code matchers.csv} is only present if the run used a different
+ *     grammar.</li>
+ * </ul>
+ *
+ * <p>Runs are numbered in the order in which they complete. Each run is
+ * spooled by its listener while it is in progress, then appended to the
+ * archive; appending runs is serialized.</p>
+ *
+ * <p>The archive must be {@link #close() closed} once all runs are complete;
+ * this writes the index.</p>
+ */
+@ParametersAreNonnullByDefault
+@ThreadSafe
+public final class TraceArchive
+    implements Closeable
+{
+    private static final String MATCHERS_PATH = "matchers.csv";
+    private static final String INDEX_PATH = "index.csv";
+    private static final String PARSES_DIRECTORY = "parses/";
+
+    private final ZipOutputStream zip;
+
+    /*
+     * The index is written to a temporary file until the archive is closed
+     */
+    private final Path indexPath;
+    private final Writer index;
+
+    /*
+     * Matchers written to the shared matchers.csv; set by the first run
+     * which only uses matchers of its grammar
+     */
+    @Nullable
+    private MatcherRegistry sharedMatchers = null;
+
+    private int nrParses = 0;
+    private boolean closed = false;
+
+    public TraceArchive(final Path zipPath, final boolean delete)
+        throws IOException
+    {
+        if (delete)
+            Files.deleteIfExists(zipPath);
+        indexPath = Files.createTempFile("trace", ".index");
+        try {
+            index = Files.newBufferedWriter(indexPath, UTF_8);
+            zip = new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(zipPath, StandardOpenOption.CREATE_NEW)));
+        } catch (IOException e) {
+            Files.deleteIfExists(indexPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Set the compression level of the archive
+     *
+     * <p>See {@link TracingListener#withCompressionLevel(int)}; the level
+     * applies to runs appended after this method is called.</p>
+     *
+     * @param level the compression level
+     * @return this
+     * @throws IllegalArgumentException invalid compression level
+     *
+     * @see Deflater
+     */
+    public synchronized TraceArchive withCompressionLevel(final int level)
+    {
+        zip.setLevel(level);
+        return this;
+    }
+
+    /**
+     * Return the number of parsing runs in this archive
+     *
+     * @return the number of runs
+     */
+    public synchronized int getNrParses()
+    {
+        return nrParses;
+    }
+
+    /*
+     * Append a parsing run; called by the listener once the run is complete
+     */
+    synchronized void addParse(final TracingListener<?> listener,
+        final MatcherRegistry matchers)
+        throws IOException
+    {
+        Preconditions.checkState(!closed, "archive is closed");
+
+        final String prefix = PARSES_DIRECTORY + nrParses + '/';
+
+        if (sharedMatchers == null && !matchers.hasExtraMatchers()) {
+            sharedMatchers = matchers;
+            TracingListener.writeMatcherInfo(zip, MATCHERS_PATH, matchers);
+        }
+
+        if (matchers.hasExtraMatchers()
+            || !sharedMatchers.hasSameGrammar(matchers))
+            TracingListener.writeMatcherInfo(zip, prefix + MATCHERS_PATH,
+                matchers);
+
+        final String info = listener.writeParse(zip, prefix);
+        index.append(Integer.toString(nrParses)).append(';').append(info)
+            .append('\n');
+        nrParses++;
+    }
+
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+
+        try (
+            final ZipOutputStream out = zip;
+        ) {
+            index.close();
+            out.putNextEntry(new ZipEntry(INDEX_PATH));
+            Files.copy(indexPath, out);
+            out.closeEntry();
+        } finally {
+            Files.deleteIfExists(indexPath);
+        }
+    }
+}
@@ -9,24 +9,34 @@ import com.github.parboiled1.grappa.backport.events.MatchSuccessEvent;
 import com.github.parboiled1.grappa.backport.events.PostParseEvent;
 import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
 import com.github.parboiled1.grappa.backport.events.PreParseEvent;
-import com.github.parboiled1.grappa.backport.type.MatcherType;
-import com.github.parboiled1.grappa.backport.type.MatcherTypeProvider;
+import com.github.parboiled1.grappa.backport.type.GrammarIndex;
 import com.github.parboiled1.grappa.exceptions.GrappaException;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CountingOutputStream;
 import org.parboiled.MatcherContext;
 import org.parboiled.matchers.Matcher;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -38,10 +48,20 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * parsing nodes and matcher information plus:</p>
  *
  * <ul>
- *     <li>the input text,</li>
+ *     <li>the input text (see also {@link #withInputStore(Path)}),</li>
  *     <li>other, generic parsing run information (date, time spent etc).</li>
  * </ul>
  *
+ * <p>The trace file (a zip file) is created when the parsing run starts, and
+ * parsing nodes are compressed into it as they are produced; the other entries
+ * are added once the parsing run completes. Such a listener can only trace one
+ * parsing run; runs which are not traced because of the {@link
+ * #withSamplingPolicy(SamplingPolicy) sampling policy} do not count.</p>
+ *
+ * <p>Alternatively, this listener can write to a {@link TraceArchive}, which
+ * holds the traces of many parsing runs; in this case, it can be used for any
+ * number of runs, and parsing nodes are spooled until the run completes.</p>
+ *
  * @param <V> parameter type of the parser
  *
  * @see EventBasedParseRunner#registerListener(ParseRunnerListener)
@@ -53,12 +73,17 @@ public final class TracingListener<V>
     /*
      * Zip info
      */
-    private static final Map<String, ?> ENV
-        = Collections.singletonMap("create", "true");
-    private static final String NODE_PATH = "/nodes.csv";
-    private static final String MATCHERS_PATH = "/matchers.csv";
-    private static final String INPUT_TEXT_PATH = "/input.txt";
-    private static final String INFO_PATH = "/info.csv";
+    private static final String MATCHERS_PATH = "matchers.csv";
+    private static final String INPUT_TEXT_PATH = "input.txt";
+    private static final String INFO_PATH = "info.csv";
+
+    private static final int INITIAL_LEVELS = 32;
+
+    // Size of spooled nodes past which they are moved to a temporary file
+    private static final int SPOOL_MEMORY = 1 << 20;
+
+    // Id of a node which has not been assigned an id yet
+    private static final int NO_ID = Integer.MIN_VALUE;
 
     /*
      * The input buffer
@@ -71,59 +96,329 @@ public final class TracingListener<V>
     private long startTime = 0L;
     private int nrLines = 0;
     private int nrChars = 0;
-    private int nrCodePoints = 0;
 
     /*
-     * Matcher type provider (matchers in 1.0.x don't have .getType())
+     * Matcher ids as written in the CSV; set when the parsing run starts
      */
-    private final MatcherTypeProvider typeProvider = new MatcherTypeProvider();
+    private MatcherRegistry matchers = null;
 
     /*
-     * Matchers found during tracing, plus their ids as written in the CSV
+     * Sampling policy, and whether the current parsing run is traced
      */
-    private final Map<Matcher, MatcherDescriptor> matcherDescriptors
-        = new IdentityHashMap<>();
-
-    private final Map<Matcher, Integer> matcherIds = new IdentityHashMap<>();
-    private int nextMatcherId = 0;
+    private SamplingPolicy samplingPolicy = SamplingPolicy.traceAll();
+    private boolean traced = false;
 
     /*
-     * Map of parsing nodes, plus id
+     * Ids of parsing nodes, indexed by level plus one (the parent of the root
+     * node has id -1); ids are assigned in preorder, when matches start
      */
-    private final Map<Integer, Integer> nodeIds = new HashMap<>();
+    private int[] nodeIds = new int[INITIAL_LEVELS + 1];
     private int nextNodeId = 0;
 
     /*
-     * Data collected in pre match events
+     * Per level sampling state: whether the node is within a recorded subtree,
+     * and whether it should be written (either because it is recorded, or
+     * because one of its descendants is recorded)
      */
-    private final Map<Integer, Integer> prematchMatcherIds = new HashMap<>();
-    private final Map<Integer, Integer> prematchIndices = new HashMap<>();
-    private final Map<Integer, Long> prematchTimes = new HashMap<>();
+    private boolean[] inSubtree = new boolean[INITIAL_LEVELS];
+    private boolean[] keepNode = new boolean[INITIAL_LEVELS];
+
+    /*
+     * Data collected in pre match events, indexed by level
+     */
+    private int[] prematchMatcherIds = new int[INITIAL_LEVELS];
+    private int[] prematchIndices = new int[INITIAL_LEVELS];
+    private long[] prematchTimes = new long[INITIAL_LEVELS];
+    private int nrLevels = 0;
+
+    // Number of levels whose match is in progress
+    private int nrOpenLevels = 0;
 
     /*
-     * The path to the zip, and the parse tree node file
+     * The path to the zip, and the zip stream; the zip is opened when the
+     * parsing run starts, and parsing nodes are written to it as they are
+     * produced
+     *
+     * When writing to an archive, there is no zip; parsing nodes are written
+     * to a spool instead
      */
+    @Nullable
     private final Path zipPath;
-    private final Path nodeFile;
-    private final BufferedWriter writer;
+    private final boolean deleteExisting;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    @Nullable
+    private ZipOutputStream zip = null;
+    @Nullable
+    private final TraceArchive archive;
+    @Nullable
+    private final SpoolChannel spool;
+    private WritableByteChannel channel;
+    private NodeFormat nodeFormat = StandardNodeFormat.CSV;
+    private NodeWriter writer = null;
+    private boolean writerOpen = false;
+    private int asyncCapacity = 0;
+    private int windowSize = 0;
+    private WindowNodeWriter window = null;
+    private Backpressure backpressure = Backpressure.BLOCK;
     private final StringBuilder sb = new StringBuilder();
 
+    /*
+     * Input store, if any; the hash and length (in bytes) of the input are
+     * computed when the parsing run completes
+     */
+    private Path inputStore = null;
+    private String inputHash = null;
+    private long inputLength = 0L;
+
+    /**
+     * Build a listener writing the trace of one parsing run to a file
+     *
+     * <p>The file is only created when the parsing run starts; it must not
+     * exist at that time, unless {@code delete} is true.</p>
+     *
+     * @param zipPath the path to the trace file
+     * @param delete whether to delete an existing file at this path
+     * @throws IOException never thrown; kept for compatibility
+     */
     public TracingListener(final Path zipPath, final boolean delete)
         throws IOException
     {
-        this.zipPath = zipPath;
-        if (delete)
-            Files.deleteIfExists(zipPath);
-        nodeFile = Files.createTempFile("nodes", ".csv");
-        writer = Files.newBufferedWriter(nodeFile, UTF_8);
+        this.zipPath = Preconditions.checkNotNull(zipPath);
+        deleteExisting = delete;
+        archive = null;
+        spool = null;
+    }
+
+    /**
+     * Build a listener writing the traces of its parsing runs to an archive
+     *
+     * @param archive the archive
+     */
+    public TracingListener(final TraceArchive archive)
+    {
+        this.archive = Preconditions.checkNotNull(archive);
+        spool = new SpoolChannel(SPOOL_MEMORY);
+        channel = spool;
+        zipPath = null;
+        deleteExisting = false;
+    }
+
+    /**
+     * Set the format of parsing nodes in the trace file
+     *
+     * <p>The default is {@link StandardNodeFormat#CSV}. This method must be
+     * called before the parsing run starts.</p>
+     *
+     * @param nodeFormat the node format
+     * @return this
+     */
+    public TracingListener<V> withNodeFormat(final NodeFormat nodeFormat)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        this.nodeFormat = Preconditions.checkNotNull(nodeFormat);
+        return this;
+    }
+
+    /**
+     * Write parsing nodes from a background thread
+     *
+     * <p>In this mode, the parsing thread only copies node information into a
+     * ring buffer of the given capacity (in nodes); a dedicated thread encodes
+     * them and writes them to the trace file. The backpressure policy defines
+     * what happens when this buffer is full. All pending nodes are written
+     * before the parsing run completes.</p>
+     *
+     * <p>The number of nodes in {@code info.csv} is the number of nodes
+     * actually written; the number of dropped nodes follows the version of the
+     * node format.</p>
+     *
+     * <p>This method must be called before the parsing run starts.</p>
+     *
+     * @param capacity the capacity of the ring buffer, in nodes
+     * @param backpressure the backpressure policy
+     * @return this
+     *
+     * @see #getDroppedNodes()
+     */
+    public TracingListener<V> withAsyncWriter(final int capacity,
+        final Backpressure backpressure)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        asyncCapacity = capacity;
+        this.backpressure = Preconditions.checkNotNull(backpressure);
+        return this;
+    }
+
+    /**
+     * Get the number of nodes dropped by the background writer
+     *
+     * <p>This is always 0 unless this listener uses a background writer with
+     * {@link Backpressure#DROP}.</p>
+     *
+     * @return the number of dropped nodes
+     */
+    public long getDroppedNodes()
+    {
+        return writer instanceof AsyncNodeWriter
+            ? ((AsyncNodeWriter) writer).getDropped()
+            : 0L;
+    }
+
+    private long getWrittenNodes()
+    {
+        if (window != null)
+            return window.size();
+        return nextNodeId - getDroppedNodes();
+    }
+
+    /**
+     * Set the sampling policy
+     *
+     * <p>The default is to trace everything. This method must be called before
+     * the parsing run starts. If the policy decides that the parsing run should
+     * not be traced, no trace file is produced.</p>
+     *
+     * @param samplingPolicy the sampling policy
+     * @return this
+     */
+    public TracingListener<V> withSamplingPolicy(
+        final SamplingPolicy samplingPolicy)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        this.samplingPolicy = Preconditions.checkNotNull(samplingPolicy);
+        return this;
+    }
+
+    /**
+     * Only keep the most recent nodes in the trace file
+     *
+     * <p>Nodes are kept in a circular buffer holding the given number of nodes;
+     * once the parsing run is complete, only these nodes are written. Since
+     * nodes are recorded once all of their descendants are, these nodes
+     * include the ancestors of all nodes in the window, up to the root node;
+     * this is also true of aborted or failed runs, whose unfinished nodes are
+     * recorded as failed matches when they end. Node ids are renumbered so
+     * that they remain dense.</p>
+     *
+     * <p>This method must be called before the parsing run starts.</p>
+     *
+     * @param maxNodes the maximum number of nodes in the trace file
+     * @return this
+     */
+    public TracingListener<V> withNodeWindow(final int maxNodes)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        Preconditions.checkArgument(maxNodes > 0,
+            "number of nodes must be positive");
+        windowSize = maxNodes;
+        return this;
+    }
+
+    /**
+     * Set the compression level of the trace file
+     *
+     * <p>The level is between 0 and 9 (see {@link Deflater}), or {@link
+     * Deflater#DEFAULT_COMPRESSION}, which is the default. Level 0 stores the
+     * data without compressing it, which is the fastest option.</p>
+     *
+     * <p>This method must be called before the parsing run starts. For
+     * listeners writing to an archive, use {@link
+     * TraceArchive#withCompressionLevel(int)} instead.</p>
+     *
+     * @param level the compression level
+     * @return this
+     * @throws IllegalArgumentException invalid compression level
+     * @throws IllegalStateException this listener writes to an archive
+     */
+    public TracingListener<V> withCompressionLevel(final int level)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        Preconditions.checkState(archive == null,
+            "compression level must be set on the archive");
+        Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION
+            && level <= Deflater.BEST_COMPRESSION,
+            "invalid compression level");
+        compressionLevel = level;
+        return this;
+    }
+
+    /**
+     * Store the input text in a shared directory instead of the trace file
+     *
+     * <p>The input text is encoded in UTF-8, and stored in the given directory
+     * in a file named after the (hex encoded) SHA-256 of its contents; the file
+     * is only written if it does not exist yet, which means that all traces of
+     * the same input share the same file. The trace file then has no {@code
+     * input.txt} entry; instead, the hash and the length of the input, in
+     * bytes, are appended to the line in {@code info.csv}.</p>
+     *
+     * <p>This method must be called before the parsing run starts.</p>
+     *
+     * @param directory the directory (created if needed)
+     * @return this
+     */
+    public TracingListener<V> withInputStore(final Path directory)
+    {
+        Preconditions.checkState(writer == null, "parsing has already started");
+        inputStore = Preconditions.checkNotNull(directory);
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A trace records every match, while a memoizing runner skips the
+     * matches below a memoized result; this listener therefore cannot be used
+     * with such a runner.</p>
+     */
+    @Override
+    public boolean supportsMemoization()
+    {
+        return false;
     }
 
     @Override
     public void beforeParse(final PreParseEvent<V> event)
     {
-        nodeIds.put(-1, -1);
+        traced = samplingPolicy.sampleParse();
+        if (!traced)
+            return;
+
+        try {
+            // A previous run may not have completed; stop its writer
+            closeWriter();
+        } catch (IOException ignored) {
+            // Nothing from that run is kept anyway
+        }
+
+        try {
+            if (archive == null)
+                openZip();
+            else
+                spool.reset();
+        } catch (IOException e) {
+            throw cleanup(e);
+        }
+        writer = nodeFormat.newWriter(channel);
+        window = null;
+        if (windowSize > 0) {
+            window = new WindowNodeWriter(writer, windowSize);
+            writer = window;
+        }
+        if (asyncCapacity > 0)
+            writer = new AsyncNodeWriter(writer, asyncCapacity, backpressure);
+        writerOpen = true;
+        nodeIds[0] = -1;
+        nextNodeId = 0;
+        nrLevels = 0;
+        nrOpenLevels = 0;
+        inputHash = null;
+        inputLength = 0L;
+        final MatcherContext<V> context = event.getContext();
+        matchers = new MatcherRegistry(GrammarIndex.of(context.getMatcher()));
         final org.parboiled.buffers.InputBuffer legacyBuffer
-            = event.getContext().getInputBuffer();
+            = context.getInputBuffer();
         inputBuffer = CharSequenceInputBuffer.fromLegacy(legacyBuffer);
         nrChars = inputBuffer.length();
         nrLines = inputBuffer.getLineCount();
@@ -133,200 +428,338 @@ public final class TracingListener<V>
     @Override
     public void beforeMatch(final PreMatchEvent<V> event)
     {
+        if (!traced)
+            return;
+
         final MatcherContext<V> context = event.getContext();
         final Matcher matcher = context.getMatcher();
-
-        Integer id = matcherIds.get(matcher);
-
-        if (id == null) {
-            //noinspection UnnecessaryBoxing
-            id = Integer.valueOf(nextMatcherId);
-            matcherIds.put(matcher, id);
-            final MatcherType type = typeProvider.getType(matcher.getClass());
-            final MatcherDescriptor descriptor
-                = new MatcherDescriptor(nextMatcherId, type, matcher);
-            matcherDescriptors.put(matcher, descriptor);
-            nextMatcherId++;
-        }
+        final int id = matchers.getId(matcher);
 
         final int level = context.getLevel();
-
-        nodeIds.put(level, nextNodeId);
-        nextNodeId++;
-
-        prematchMatcherIds.put(level, id);
-        final int startIndex = Math.min(nrChars, context.getCurrentIndex());
-        prematchIndices.put(level, startIndex);
-        prematchTimes.put(level, System.nanoTime());
+        ensureLevel(level);
+
+        final boolean subtree = !samplingPolicy.hasSubtreeRoots()
+            || level > 0 && inSubtree[level - 1]
+            || samplingPolicy.isSubtreeRoot(matcher);
+        final boolean recorded
+            = subtree && level <= samplingPolicy.getMaxLevel();
+
+        inSubtree[level] = subtree;
+        keepNode[level] = recorded;
+
+        if (recorded) {
+            // Ancestors of a recorded node are written as well; number them
+            // first, so that ids remain in preorder
+            int ancestor = level;
+            while (ancestor > 0 && nodeIds[ancestor] == NO_ID)
+                ancestor--;
+            for (; ancestor < level; ancestor++) {
+                nodeIds[ancestor + 1] = nextNodeId++;
+                keepNode[ancestor] = true;
+            }
+            nodeIds[level + 1] = nextNodeId++;
+        } else
+            nodeIds[level + 1] = NO_ID;
+
+        prematchMatcherIds[level] = id;
+        prematchIndices[level] = Math.min(nrChars, context.getCurrentIndex());
+        prematchTimes[level] = System.nanoTime();
+        nrOpenLevels = level + 1;
     }
 
-    @SuppressWarnings({ "AutoBoxing", "AutoUnboxing" })
     @Override
     public void matchSuccess(final MatchSuccessEvent<V> event)
     {
         final long endTime = System.nanoTime();
+        if (!traced)
+            return;
+
         final MatcherContext<V> context = event.getContext();
-        final int level = context.getLevel();
+        final int endIndex = Math.min(nrChars, context.getCurrentIndex());
 
-        final Integer parentNodeId = nodeIds.get(level - 1);
-        final Integer nodeId = nodeIds.get(level);
+        writeNode(context.getLevel(), true, endIndex, endTime);
+    }
 
-        final int startIndex = prematchIndices.get(level);
-        final int endIndex
-            = Math.min(nrChars, context.getCurrentIndex());
+    @Override
+    public void matchFailure(final MatchFailureEvent<V> event)
+    {
+        final long endTime = System.nanoTime();
+        if (!traced)
+            return;
 
-        final Integer matcherId = prematchMatcherIds.get(level);
+        final MatcherContext<V> context = event.getContext();
 
-        final long time = endTime - prematchTimes.get(level);
+        writeNode(context.getLevel(), false, context.getCurrentIndex(),
+            endTime);
+    }
+
+    @Override
+    public void afterParse(final PostParseEvent<V> event)
+    {
+        if (!traced)
+            return;
 
-        // Write:
-        // parent;id;level;success;matcherId;start;end;time
-        sb.setLength(0);
-        sb.append(parentNodeId).append(';')
-            .append(nodeId).append(';')
-            .append(level).append(";1;")
-            .append(matcherId).append(';')
-            .append(startIndex).append(';')
-            .append(endIndex).append(';')
-            .append(time).append('\n');
         try {
-            writer.append(sb);
+            writeOpenNodes();
+            closeWriter();
+            if (archive != null) {
+                archive.addParse(this, matchers);
+                spool.reset();
+                return;
+            }
+            zip.closeEntry();
+            copyInputText(zip, "");
+            writeMatcherInfo(zip, MATCHERS_PATH, matchers);
+            copyParseInfo(zip, "");
+            zip.close();
         } catch (IOException e) {
             throw cleanup(e);
         }
     }
 
-    @SuppressWarnings({ "AutoBoxing", "AutoUnboxing" })
-    @Override
-    public void matchFailure(final MatchFailureEvent<V> event)
+    private void closeWriter()
+        throws IOException
     {
-        final long endTime = System.nanoTime();
-        final MatcherContext<V> context = event.getContext();
-        final int level = context.getLevel();
+        if (!writerOpen)
+            return;
+        writerOpen = false;
+        writer.close();
+    }
 
-        final Integer parentNodeId = nodeIds.get(level - 1);
-        final Integer nodeId = nodeIds.get(level);
+    private void openZip()
+        throws IOException
+    {
+        Preconditions.checkState(zip == null, "a trace file has already been"
+            + " written; use a TraceArchive to trace several parsing runs");
+        if (deleteExisting)
+            Files.deleteIfExists(zipPath);
+        zip = new ZipOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(zipPath, StandardOpenOption.CREATE_NEW)));
+        zip.setLevel(compressionLevel);
+        channel = Channels.newChannel(zip);
+        zip.putNextEntry(new ZipEntry(nodeFormat.getEntryName()));
+    }
 
-        final int startIndex = prematchIndices.get(level);
-        final int endIndex = context.getCurrentIndex();
+    /*
+     * Write the entries of the current parsing run to an archive, with the
+     * given prefix, and return its information line
+     */
+    String writeParse(final ZipOutputStream out, final String prefix)
+        throws IOException
+    {
+        out.putNextEntry(new ZipEntry(prefix + nodeFormat.getEntryName()));
+        spool.transferTo(out);
+        out.closeEntry();
+        copyInputText(out, prefix);
+        return copyParseInfo(out, prefix);
+    }
 
-        final Integer matcherId = prematchMatcherIds.get(level);
+    static void writeMatcherInfo(final ZipOutputStream out,
+        final String entryName, final MatcherRegistry matchers)
+        throws IOException
+    {
+        out.putNextEntry(new ZipEntry(entryName));
+        final Writer writer = new OutputStreamWriter(out, UTF_8);
+        final StringBuilder sb = new StringBuilder();
 
-        final long time = endTime - prematchTimes.get(level);
+        final int nrMatchers = matchers.size();
+        MatcherDescriptor descriptor;
 
-        // Write:
-        // parent;id;level;success;matcherId;start;end;time
-        sb.setLength(0);
-        sb.append(parentNodeId).append(';')
-            .append(nodeId).append(';')
-            .append(level).append(";0;")
-            .append(matcherId).append(';')
-            .append(startIndex).append(';')
-            .append(endIndex).append(';')
-            .append(time).append('\n');
-        try {
+        for (int id = 0; id < nrMatchers; id++) {
+            descriptor = matchers.getDescriptor(id);
+            sb.setLength(0);
+            sb.append(descriptor.getId()).append(';')
+                .append(descriptor.getClassName()).append(';')
+                .append(descriptor.getType()).append(';')
+                .append(descriptor.getName()).append('\n');
             writer.append(sb);
-        } catch (IOException e) {
-            throw cleanup(e);
         }
+
+        writer.flush();
+        out.closeEntry();
     }
 
-    @Override
-    public void afterParse(final PostParseEvent<V> event)
+    private void copyInputText(final ZipOutputStream out, final String prefix)
+        throws IOException
     {
-        try {
-            writer.flush();
-            writer.close();
-        } catch (IOException e) {
-            throw cleanup(e);
+        if (inputStore != null) {
+            storeInputText();
+            return;
         }
 
-        final URI uri = URI.create("jar:" + zipPath.toUri());
+        out.putNextEntry(new ZipEntry(prefix + INPUT_TEXT_PATH));
+        writeInputText(out);
+        out.closeEntry();
+    }
 
-        try (
-            final FileSystem zipfs = FileSystems.newFileSystem(uri, ENV);
-        ) {
-            Files.move(nodeFile, zipfs.getPath(NODE_PATH));
-            copyInputText(zipfs);
-            copyMatcherInfo(zipfs);
-            copyParseInfo(zipfs);
-        } catch (IOException e) {
-            throw cleanup(e);
+    private void storeInputText()
+        throws IOException
+    {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        final CountingOutputStream counter
+            = new CountingOutputStream(Funnels.asOutputStream(hasher));
+        writeInputText(counter);
+        inputHash = hasher.hash().toString();
+        inputLength = counter.getCount();
+
+        final Path target = inputStore.resolve(inputHash);
+        if (Files.exists(target))
+            return;
+
+        Files.createDirectories(inputStore);
+        final Path tmp = Files.createTempFile(inputStore, inputHash, ".tmp");
+        try {
+            try (
+                final OutputStream out
+                    = new BufferedOutputStream(Files.newOutputStream(tmp));
+            ) {
+                writeInputText(out);
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            // Another trace stored the same input in the meantime
+        } finally {
+            Files.deleteIfExists(tmp);
         }
     }
 
-    private void copyInputText(final FileSystem zipfs)
+    private void writeInputText(final OutputStream out)
         throws IOException
     {
-        final Path path = zipfs.getPath(INPUT_TEXT_PATH);
+        if (inputBuffer instanceof CharSequenceInputBuffer) {
+            ((CharSequenceInputBuffer) inputBuffer).writeTo(out, UTF_8);
+            return;
+        }
+        final Writer writer = new OutputStreamWriter(out, UTF_8);
+        writer.write(inputBuffer.extract(0, nrChars));
+        writer.flush();
+    }
 
-        final String s = inputBuffer.extract(0, nrChars);
-        nrCodePoints = s.codePointCount(0, nrChars);
+    private String copyParseInfo(final ZipOutputStream out,
+        final String prefix)
+        throws IOException
+    {
+        out.putNextEntry(new ZipEntry(prefix + INFO_PATH));
+        final Writer writer = new OutputStreamWriter(out, UTF_8);
 
-        try (
-            final BufferedWriter writer = Files.newBufferedWriter(path, UTF_8);
-        ) {
-            writer.write(s);
-            writer.flush();
-        }
+        sb.setLength(0);
+        sb.append(startTime).append(';')
+            .append(nrLevels).append(';')
+            .append(matchers.size()).append(';')
+            .append(nrLines).append(';')
+            .append(nrChars).append(';')
+            .append(countCodePoints()).append(';')
+            .append(getWrittenNodes()).append(';')
+            .append(nodeFormat.getVersion()).append(';')
+            .append(getDroppedNodes());
+        if (inputHash != null)
+            sb.append(';').append(inputHash).append(';').append(inputLength);
+        final String ret = sb.toString();
+        sb.append('\n');
+        writer.append(sb);
+
+        writer.flush();
+        out.closeEntry();
+        return ret;
     }
 
-    private void copyMatcherInfo(final FileSystem zipfs)
+    private int countCodePoints()
     {
-        final Path path = zipfs.getPath(MATCHERS_PATH);
-
-        try (
-            final BufferedWriter writer = Files.newBufferedWriter(path, UTF_8);
-        ) {
-            for (final MatcherDescriptor descriptor:
-                matcherDescriptors.values()) {
-                sb.setLength(0);
-                sb.append(descriptor.getId()).append(';')
-                    .append(descriptor.getClassName()).append(';')
-                    .append(descriptor.getType()).append(';')
-                    .append(descriptor.getName()).append('\n');
-                writer.append(sb);
-            }
-            writer.flush();
+        if (inputBuffer instanceof CharSequenceInputBuffer)
+            return ((CharSequenceInputBuffer) inputBuffer).getCodePointCount();
+        return inputBuffer.extract(0, nrChars).codePointCount(0, nrChars);
+    }
+
+    private void writeNode(final int level, final boolean success,
+        final int endIndex, final long endTime)
+    {
+        nrOpenLevels = level;
+        if (!keepNode[level])
+            return;
+
+        final int parentNodeId = nodeIds[level];
+        final int nodeId = nodeIds[level + 1];
+
+        final int startIndex = prematchIndices[level];
+
+        final int matcherId = prematchMatcherIds[level];
+
+        final long time = endTime - prematchTimes[level];
+
+        try {
+            writer.write(parentNodeId, nodeId, level, success, matcherId,
+                startIndex, endIndex, time);
         } catch (IOException e) {
             throw cleanup(e);
         }
     }
 
-    // MUST be called after copyInputText!
-    private void copyParseInfo(final FileSystem zipfs)
-        throws IOException
+    /*
+     * Write the nodes whose match was still in progress when the parsing run
+     * ended (this only happens if the run was aborted or failed), as failed
+     * empty matches; this way, the parents of all written nodes are written
+     */
+    private void writeOpenNodes()
     {
-        final Path path = zipfs.getPath(INFO_PATH);
-        try (
+        final long endTime = System.nanoTime();
+        for (int level = nrOpenLevels - 1; level >= 0; level--)
+            writeNode(level, false, prematchIndices[level], endTime);
+    }
 
-            final BufferedWriter writer = Files.newBufferedWriter(path, UTF_8);
-        ) {
-            sb.setLength(0);
-            sb.append(startTime).append(';')
-                .append(prematchIndices.size()).append(';')
-                .append(nextMatcherId).append(';')
-                .append(nrLines).append(';')
-                .append(nrChars).append(';')
-                .append(nrCodePoints).append(';')
-                .append(nextNodeId).append('\n');
-            writer.append(sb);
-            writer.flush();
-        }
+    private void ensureLevel(final int level)
+    {
+        if (level >= nrLevels)
+            nrLevels = level + 1;
+
+        final int len = prematchIndices.length;
+        if (level < len)
+            return;
+
+        final int newLength = Math.max(len * 2, level + 1);
+        nodeIds = Arrays.copyOf(nodeIds, newLength + 1);
+        prematchMatcherIds = Arrays.copyOf(prematchMatcherIds, newLength);
+        prematchIndices = Arrays.copyOf(prematchIndices, newLength);
+        prematchTimes = Arrays.copyOf(prematchTimes, newLength);
+        inSubtree = Arrays.copyOf(inSubtree, newLength);
+        keepNode = Arrays.copyOf(keepNode, newLength);
     }
 
     private GrappaException cleanup(final IOException e)
     {
         final GrappaException ret
             = new GrappaException("failed to write event", e);
+
+        // Ignore the remaining events of this run
+        traced = false;
+
         try {
-            writer.close();
+            closeWriter();
+        } catch (IOException e1) {
+            if (e1 != e)
+                ret.addSuppressed(e1);
+        }
+
+        if (archive != null) {
+            try {
+                spool.reset();
+            } catch (IOException e2) {
+                ret.addSuppressed(e2);
+            }
+            return ret;
+        }
+
+        // Only delete the trace file if this listener created it
+        if (zip == null)
+            return ret;
+
+        try {
+            zip.close();
         } catch (IOException e2) {
             ret.addSuppressed(e2);
         }
 
         try {
-            Files.deleteIfExists(nodeFile);
+            Files.deleteIfExists(zipPath);
         } catch (IOException e3) {
             ret.addSuppressed(e3);
         }
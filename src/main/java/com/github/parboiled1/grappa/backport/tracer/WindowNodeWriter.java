@@ -0,0 +1,119 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A node writer only keeping the most recent nodes
+ *
+ * <p>Nodes are kept in a circular, off heap buffer of fixed size records; only
+ * when this writer is closed are they handed over to the delegate writer, in
+ * the order in which they were written.</p>
+ *
+ * <p>Since a node is always written after all of its descendants, the most
+ * recent nodes always include the ancestors of every node they contain,
+ * provided that nodes whose match is still in progress when the parsing run
+ * ends are written as well (see {@link TracingListener}). Node ids are
+ * renumbered so as to be dense, while preserving their order. The only nodes
+ * whose parent may be missing are those whose parent was dropped before
+ * reaching this writer (see {@link Backpressure#DROP}); their parent id is
+ * then -1.</p>
+ */
+final class WindowNodeWriter
+    implements NodeWriter
+{
+    private static final int RECORD_SIZE = 32;
+
+    private final NodeWriter delegate;
+    private final ByteBuffer buffer;
+    private final int capacity;
+
+    // Total number of nodes written to this writer
+    private long count = 0L;
+
+    WindowNodeWriter(final NodeWriter delegate, final int capacity)
+    {
+        Preconditions.checkArgument(capacity > 0
+            && capacity <= Integer.MAX_VALUE / RECORD_SIZE,
+            "illegal window size %s", capacity);
+        this.delegate = delegate;
+        this.capacity = capacity;
+        buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+    }
+
+    @Override
+    public void write(final int parentId, final int nodeId, final int level,
+        final boolean success, final int matcherId, final int startIndex,
+        final int endIndex, final long time)
+    {
+        final int offset = (int) (count % capacity) * RECORD_SIZE;
+        buffer.putInt(offset, parentId);
+        buffer.putInt(offset + 4, nodeId);
+        buffer.putInt(offset + 8, level);
+        buffer.putInt(offset + 12, matcherId << 1 | (success ? 1 : 0));
+        buffer.putInt(offset + 16, startIndex);
+        buffer.putInt(offset + 20, endIndex);
+        buffer.putLong(offset + 24, time);
+        count++;
+    }
+
+    /**
+     * Return the number of nodes in the window
+     *
+     * @return the number of nodes
+     */
+    int size()
+    {
+        return (int) Math.min(count, capacity);
+    }
+
+    @Override
+    public void flush()
+    {
+        // Nothing is written until this writer is closed
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        final int size = size();
+        final int first = (int) ((count - size) % capacity);
+
+        final int[] ids = new int[size];
+        for (int i = 0; i < size; i++)
+            ids[i] = buffer.getInt(offset(first, i) + 4);
+        Arrays.sort(ids);
+
+        int offset;
+        int parentId;
+        int matcher;
+
+        for (int i = 0; i < size; i++) {
+            offset = offset(first, i);
+            parentId = buffer.getInt(offset);
+            if (parentId != -1) {
+                parentId = Arrays.binarySearch(ids, parentId);
+                // The parent was dropped upstream
+                if (parentId < 0)
+                    parentId = -1;
+            }
+            matcher = buffer.getInt(offset + 12);
+            delegate.write(parentId,
+                Arrays.binarySearch(ids, buffer.getInt(offset + 4)),
+                buffer.getInt(offset + 8), (matcher & 1) != 0, matcher >>> 1,
+                buffer.getInt(offset + 16), buffer.getInt(offset + 20),
+                buffer.getLong(offset + 24));
+        }
+
+        delegate.close();
+    }
+
+    private int offset(final int first, final int index)
+    {
+        return (first + index) % capacity * RECORD_SIZE;
+    }
+}
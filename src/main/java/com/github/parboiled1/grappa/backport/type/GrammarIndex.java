@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.type;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.parboiled.Rule;
+import org.parboiled.matchers.Matcher;
+import org.parboiled.matchers.MemoMismatchesMatcher;
+import org.parboiled.matchers.ProxyMatcher;
+import org.parboiled.matchers.VarFramingMatcher;
+
+import javax.annotation.Nonnull;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.Immutable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * An index of all the matchers of a grammar
+ *
+ * <p>The index is built by walking all matchers reachable from the root rule;
+ * each of them is given a dense id, starting from 0 for the root, along with
+ * its {@link MatcherType}. {@link ProxyMatcher}s are replaced with their
+ * targets; {@link VarFramingMatcher}s and {@link MemoMismatchesMatcher}s are
+ * indexed along with the matchers they wrap. Ids only depend on the structure
+ * of the grammar, and are therefore the same from one run to the next.</p>
+ *
+ * <p>The index also records which matchers may run actions, that is, which
+ * matchers are {@link MatcherType#ACTION actions} or can reach one (see {@link
+ * #hasActions(int)}).</p>
+ *
+ * <p>Indices are immutable and can be shared between threads. Use {@link
+ * #of(Rule)} to obtain the index of a grammar; it is only built once for as
+ * long as it is referenced, and neither the index nor its grammar are retained
+ * once it is not.</p>
+ */
+@ParametersAreNonnullByDefault
+@Immutable
+public final class GrammarIndex
+{
+    private static final int MIN_TABLE_SIZE = 64;
+
+    /*
+     * An index references its root, that is, its key; values must therefore be
+     * weak, otherwise entries would never be collected
+     */
+    private static final LoadingCache<Matcher, GrammarIndex> CACHE
+        = CacheBuilder.newBuilder().weakKeys().weakValues()
+        .build(new CacheLoader<Matcher, GrammarIndex>()
+        {
+            @Override
+            public GrammarIndex load(@Nonnull final Matcher key)
+            {
+                return new GrammarIndex(key,
+                    MatcherTypeProvider.getDefault());
+            }
+        });
+
+    /*
+     * Matchers and their types, indexed by id
+     */
+    private final Matcher[] matchers;
+    private final MatcherType[] types;
+    private final boolean[] actions;
+
+    /*
+     * Open addressing table from matchers (by identity) to ids; the size is a
+     * power of two, and the load factor is at most 0.5
+     */
+    private final Matcher[] keys;
+    private final int[] values;
+    private final int mask;
+
+    /**
+     * Return the index of a grammar, using the default type provider
+     *
+     * @param root the root rule
+     * @return the index
+     *
+     * @see MatcherTypeProvider#getDefault()
+     */
+    public static GrammarIndex of(final Rule root)
+    {
+        Preconditions.checkNotNull(root);
+        return CACHE.getUnchecked((Matcher) root);
+    }
+
+    /**
+     * Build the index of a grammar with a custom type provider
+     *
+     * <p>Unlike {@link #of(Rule)}, this always builds a new index.</p>
+     *
+     * @param root the root rule
+     * @param typeProvider the type provider
+     */
+    public GrammarIndex(final Rule root, final MatcherTypeProvider typeProvider)
+    {
+        this((Matcher) Preconditions.checkNotNull(root),
+            Preconditions.checkNotNull(typeProvider));
+    }
+
+    private GrammarIndex(final Matcher root,
+        final MatcherTypeProvider typeProvider)
+    {
+        Matcher[] found = new Matcher[MIN_TABLE_SIZE];
+        int nrMatchers = 0;
+        Matcher[] table = new Matcher[MIN_TABLE_SIZE];
+        int[] ids = new int[MIN_TABLE_SIZE];
+
+        final Deque<Matcher> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        Matcher matcher;
+        List<Matcher> children;
+        int slot;
+
+        while (!stack.isEmpty()) {
+            matcher = stack.pop();
+
+            if (matcher instanceof ProxyMatcher) {
+                stack.push(ProxyMatcher.unwrap(matcher));
+                continue;
+            }
+
+            slot = find(table, matcher);
+            if (table[slot] != null)
+                continue;
+
+            table[slot] = matcher;
+            ids[slot] = nrMatchers;
+            if (nrMatchers == found.length)
+                found = Arrays.copyOf(found, nrMatchers * 2);
+            found[nrMatchers++] = matcher;
+
+            if (nrMatchers * 2 > table.length) {
+                final Matcher[] oldTable = table;
+                final int[] oldIds = ids;
+                table = new Matcher[oldTable.length * 2];
+                ids = new int[table.length];
+                for (int i = 0; i < oldTable.length; i++) {
+                    if (oldTable[i] == null)
+                        continue;
+                    slot = find(table, oldTable[i]);
+                    table[slot] = oldTable[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+
+            // The children of wrappers are those of the wrapped matcher
+            if (matcher instanceof VarFramingMatcher) {
+                stack.push(VarFramingMatcher.unwrap(matcher));
+                continue;
+            }
+            if (matcher instanceof MemoMismatchesMatcher) {
+                stack.push(MemoMismatchesMatcher.unwrap(matcher));
+                continue;
+            }
+
+            children = matcher.getChildren();
+            for (int i = children.size() - 1; i >= 0; i--)
+                stack.push(children.get(i));
+        }
+
+        matchers = Arrays.copyOf(found, nrMatchers);
+        types = new MatcherType[nrMatchers];
+        for (int i = 0; i < nrMatchers; i++)
+            types[i] = typeProvider.getType(matchers[i].getClass());
+
+        keys = table;
+        values = ids;
+        mask = table.length - 1;
+
+        actions = findActions();
+    }
+
+    /**
+     * Return the number of matchers in this index
+     *
+     * @return the number of matchers
+     */
+    public int size()
+    {
+        return matchers.length;
+    }
+
+    /**
+     * Return the id of a matcher
+     *
+     * @param matcher the matcher
+     * @return the id, or -1 if this matcher is not part of the index
+     */
+    public int getId(final Matcher matcher)
+    {
+        int slot = hash(matcher) & mask;
+        Matcher key;
+
+        while ((key = keys[slot]) != null) {
+            if (key == matcher)
+                return values[slot];
+            slot = slot + 1 & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Return the matcher with a given id
+     *
+     * @param id the id
+     * @return the matcher
+     * @throws ArrayIndexOutOfBoundsException no such id
+     */
+    public Matcher getMatcher(final int id)
+    {
+        return matchers[id];
+    }
+
+    /**
+     * Return the type of the matcher with a given id
+     *
+     * @param id the id
+     * @return the type
+     * @throws ArrayIndexOutOfBoundsException no such id
+     */
+    public MatcherType getType(final int id)
+    {
+        return types[id];
+    }
+
+    /**
+     * Tell whether a matcher may run actions
+     *
+     * <p>This is the case if the matcher is an action, or if an action can be
+     * reached from it. The result of a match by a matcher which has no actions
+     * only depends on the input and on the index at which the match starts, as
+     * long as action matchers are the only ones with side effects.</p>
+     *
+     * @param id the id
+     * @return true if this matcher may run actions
+     * @throws ArrayIndexOutOfBoundsException no such id
+     */
+    public boolean hasActions(final int id)
+    {
+        return actions[id];
+    }
+
+    private boolean[] findActions()
+    {
+        final int nrMatchers = matchers.length;
+        final int[][] successors = new int[nrMatchers][];
+        final boolean[] ret = new boolean[nrMatchers];
+
+        for (int id = 0; id < nrMatchers; id++) {
+            successors[id] = findSuccessors(matchers[id]);
+            ret[id] = types[id] == MatcherType.ACTION;
+        }
+
+        // Propagate to predecessors until nothing changes; ids are in
+        // preorder, so walking them backwards converges quickly
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            for (int id = nrMatchers - 1; id >= 0; id--) {
+                if (ret[id])
+                    continue;
+                for (final int successor: successors[id])
+                    if (ret[successor]) {
+                        ret[id] = true;
+                        changed = true;
+                        break;
+                    }
+            }
+        }
+
+        return ret;
+    }
+
+    private int[] findSuccessors(final Matcher matcher)
+    {
+        if (matcher instanceof VarFramingMatcher)
+            return new int[] { getId(unproxy(
+                VarFramingMatcher.unwrap(matcher))) };
+        if (matcher instanceof MemoMismatchesMatcher)
+            return new int[] { getId(unproxy(
+                MemoMismatchesMatcher.unwrap(matcher))) };
+
+        final List<Matcher> children = matcher.getChildren();
+        final int size = children.size();
+        final int[] ret = new int[size];
+
+        for (int i = 0; i < size; i++)
+            ret[i] = getId(unproxy(children.get(i)));
+
+        return ret;
+    }
+
+    private static Matcher unproxy(final Matcher matcher)
+    {
+        Matcher ret = matcher;
+        while (ret instanceof ProxyMatcher)
+            ret = ProxyMatcher.unwrap(ret);
+        return ret;
+    }
+
+    /*
+     * Return the slot of a matcher in a table, or the empty slot where it
+     * should be inserted
+     */
+    private static int find(final Matcher[] table, final Matcher matcher)
+    {
+        final int tableMask = table.length - 1;
+        int slot = hash(matcher) & tableMask;
+        Matcher key;
+
+        while ((key = table[slot]) != null && key != matcher)
+            slot = slot + 1 & tableMask;
+
+        return slot;
+    }
+
+    private static int hash(final Matcher matcher)
+    {
+        final int h = System.identityHashCode(matcher);
+        return h ^ h >>> 16;
+    }
+}
@@ -29,7 +29,7 @@ import org.parboiled.matchers.ZeroOrMoreMatcher;
 
 import javax.annotation.Nonnull;
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.util.HashMap;
+import javax.annotation.concurrent.ThreadSafe;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -57,14 +57,40 @@ import java.util.Objects;
  *     }
  * </pre>
  *
+ * <p>Instances are thread safe, and resolved types are cached per class: once
+ * the type of a class has been determined, looking it up again does not need
+ * any locking. Registering a class discards all cached types, so classes can
+ * be registered at any time, but are best registered from the constructor. If
+ * you do not need to register classes of your own, use {@link
+ * #getDefault()}.</p>
+ *
  * @see MatcherType
  */
 @ParametersAreNonnullByDefault
+@ThreadSafe
 public class MatcherTypeProvider
 {
+    private static final MatcherTypeProvider DEFAULT
+        = new MatcherTypeProvider();
+
     private final Map<Class<?>, MatcherType> map = new LinkedHashMap<>();
 
-    private final Map<Class<?>, MatcherType> cache = new HashMap<>();
+    /*
+     * Replaced whenever a class is registered, since the new class may change
+     * the type of any class already looked up (including subclasses)
+     */
+    private volatile ClassValue<MatcherType> cache = newCache();
+
+    /**
+     * Return a provider shared by all users which do not need to register
+     * classes of their own
+     *
+     * @return the default provider
+     */
+    public static MatcherTypeProvider getDefault()
+    {
+        return DEFAULT;
+    }
 
     public MatcherTypeProvider()
     {
@@ -110,28 +136,40 @@ public class MatcherTypeProvider
     {
         Objects.requireNonNull(c);
         Objects.requireNonNull(type);
-        map.put(c, type);
+        synchronized (map) {
+            map.put(c, type);
+            cache = newCache();
+        }
     }
 
     @Nonnull
     public MatcherType getType(final Class<? extends Matcher> c)
     {
-        MatcherType type;
+        return cache.get(c);
+    }
 
-        type = map.get(c);
-        if (type != null)
-            return type;
+    private ClassValue<MatcherType> newCache()
+    {
+        return new ClassValue<MatcherType>()
+        {
+            @Override
+            protected MatcherType computeValue(final Class<?> type)
+            {
+                return resolve(type);
+            }
+        };
+    }
 
-        type = cache.get(c);
-        if (type != null)
-            return type;
+    private MatcherType resolve(final Class<?> c)
+    {
+        synchronized (map) {
+            final MatcherType type = map.get(c);
+            if (type != null)
+                return type;
 
-        for (final Entry<Class<?>, MatcherType> entry: map.entrySet()) {
-            if (!entry.getKey().isAssignableFrom(c))
-                continue;
-            type = entry.getValue();
-            cache.put(c, type);
-            return type;
+            for (final Entry<Class<?>, MatcherType> entry: map.entrySet())
+                if (entry.getKey().isAssignableFrom(c))
+                    return entry.getValue();
         }
         throw new RuntimeException("cannot determine matcher type for " + c
             + "; please extend MatcherTypeProvider and register this class");
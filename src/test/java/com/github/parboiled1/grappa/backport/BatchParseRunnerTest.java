@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+import org.parboiled.support.ParsingResult;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class BatchParseRunnerTest
+{
+    private static final int NR_INPUTS = 100;
+
+    /*
+     * Inputs with this many lines exceed the budget of runners
+     */
+    private static final int TOO_LONG = 200;
+
+    private final List<String> inputs = new ArrayList<>();
+
+    private ExecutorService executor;
+    private EventBasedParseRunnerFactory<Object> factory;
+
+    @BeforeMethod
+    public void init()
+    {
+        inputs.clear();
+        for (int i = 0; i < NR_INPUTS; i++)
+            inputs.add(SampleParser.wordsInput(i % 10)
+                + (i % 7 == 0 ? "42" : ""));
+
+        executor = Executors.newFixedThreadPool(4);
+        factory = new EventBasedParseRunnerFactory<Object>(new Supplier<Rule>()
+        {
+            @Override
+            public Rule get()
+            {
+                return Parboiled.createParser(SampleParser.class).words();
+            }
+        })
+        {
+            @Override
+            protected void configure(final EventBasedParseRunner<Object> runner)
+            {
+                runner.withMaxMatches(5000L);
+            }
+        };
+    }
+
+    @AfterMethod
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void orderedResultsAreThoseOfSequentialRuns()
+        throws InterruptedException
+    {
+        final List<ParsingResult<Object>> results
+            = new BatchParseRunner<>(factory, executor).withMaxInFlight(3)
+            .run(inputs);
+
+        assertEquals(results.size(), NR_INPUTS);
+        for (int i = 0; i < NR_INPUTS; i++)
+            checkResult(results.get(i), inputs.get(i));
+    }
+
+    @Test
+    public void unorderedResultsCoverAllInputs()
+        throws InterruptedException
+    {
+        final List<ParsingResult<Object>> results = new ArrayList<>();
+        for (int i = 0; i < NR_INPUTS; i++)
+            results.add(null);
+
+        new BatchParseRunner<>(factory, executor).withUnorderedResults()
+            .withMaxInFlight(3).run(inputs, new BatchResultHandler<Object>()
+        {
+            @Override
+            public void handleResult(final long index,
+                final ParsingResult<Object> result)
+            {
+                assertNull(results.get((int) index));
+                results.set((int) index, result);
+            }
+
+            @Override
+            public void handleFailure(final long index,
+                final RuntimeException exception)
+            {
+                throw exception;
+            }
+        });
+
+        for (int i = 0; i < NR_INPUTS; i++) {
+            assertNotNull(results.get(i), "no result for input " + i);
+            checkResult(results.get(i), inputs.get(i));
+        }
+    }
+
+    @Test
+    public void failedRunsAreHandedToTheHandler()
+        throws InterruptedException
+    {
+        inputs.set(10, SampleParser.wordsInput(TOO_LONG));
+        inputs.set(20, SampleParser.wordsInput(TOO_LONG));
+
+        final List<Long> failures = new ArrayList<>();
+        final List<Long> successes = new ArrayList<>();
+
+        new BatchParseRunner<>(factory, executor).run(inputs,
+            new BatchResultHandler<Object>()
+            {
+                @Override
+                public void handleResult(final long index,
+                    final ParsingResult<Object> result)
+                {
+                    checkResult(result, inputs.get((int) index));
+                    successes.add(index);
+                }
+
+                @Override
+                public void handleFailure(final long index,
+                    final RuntimeException exception)
+                {
+                    assertTrue(exception instanceof ParseAbortedException);
+                    failures.add(index);
+                }
+            });
+
+        assertEquals(failures, Lists.newArrayList(10L, 20L));
+        assertEquals(successes.size(), NR_INPUTS - 2);
+        assertFalse(successes.contains(10L));
+    }
+
+    @Test
+    public void failuresAreRethrownWhenCollectingResults()
+        throws InterruptedException
+    {
+        inputs.set(10, SampleParser.wordsInput(TOO_LONG));
+
+        try {
+            new BatchParseRunner<>(factory, executor).run(inputs);
+            fail("no exception thrown");
+        } catch (ParseAbortedException e) {
+            assertEquals(e.getReason(),
+                ParseAbortedException.Reason.MAX_MATCHES);
+        }
+    }
+
+    @Test
+    public void inputsAreReadLazilyAndHandlerExceptionsStopTheBatch()
+        throws InterruptedException
+    {
+        final int maxInFlight = 5;
+        final CountingIterable counting = new CountingIterable(inputs);
+
+        try {
+            new BatchParseRunner<>(factory, executor)
+                .withMaxInFlight(maxInFlight)
+                .run(counting, new BatchResultHandler<Object>()
+                {
+                    @Override
+                    public void handleResult(final long index,
+                        final ParsingResult<Object> result)
+                    {
+                        assertTrue(counting.nrRead <= index + maxInFlight,
+                            counting.nrRead + " inputs read");
+                        if (index == 30L)
+                            throw new IllegalStateException("stop");
+                    }
+
+                    @Override
+                    public void handleFailure(final long index,
+                        final RuntimeException exception)
+                    {
+                        throw exception;
+                    }
+                });
+            fail("no exception thrown");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "stop");
+        }
+
+        assertTrue(counting.nrRead <= 30 + maxInFlight,
+            counting.nrRead + " inputs read");
+    }
+
+    private static void checkResult(final ParsingResult<Object> result,
+        final String input)
+    {
+        final ParsingResult<Object> expected
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words())
+            .run(input);
+
+        assertEquals(result.matched, expected.matched);
+        assertEquals(Lists.newArrayList(result.valueStack),
+            Lists.newArrayList(expected.valueStack));
+        assertEquals(result.parseErrors.size(), expected.parseErrors.size());
+    }
+
+    private static final class CountingIterable
+        implements Iterable<String>
+    {
+        private final List<String> inputs;
+        private int nrRead = 0;
+
+        private CountingIterable(final List<String> inputs)
+        {
+            this.inputs = inputs;
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            final Iterator<String> iterator = inputs.iterator();
+
+            return new Iterator<String>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public String next()
+                {
+                    nrRead++;
+                    return iterator.next();
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Support for benchmarks
+ *
+ * <p>Benchmarks are plain programs run from the test class path, for instance
+ * with:</p>
+ *
+ * <pre>
+ *     java -cp &lt;test classpath&gt; \
+ *         com.github.parboiled1.grappa.backport.DispatchBenchmark
+ * </pre>
+ *
+ * <p>Each measured operation is first run repeatedly to warm up the JIT; the
+ * report then gives the time per unit of work (a match, a node...) and the
+ * number of bytes allocated by the benchmarking thread per unit of work, as
+ * measured by the JVM.</p>
+ */
+public final class Benchmarks
+{
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final long MEASURE_NANOS = 3_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS
+        = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Benchmarks()
+    {
+    }
+
+    /**
+     * An operation to measure
+     */
+    public interface Operation
+    {
+        /**
+         * Run the operation once
+         *
+         * @return the number of units of work done
+         * @throws Exception any exception
+         */
+        long run()
+            throws Exception;
+    }
+
+    /**
+     * Measure an operation and print the result
+     *
+     * @param name the name of the measure
+     * @param unit the name of a unit of work
+     * @param operation the operation
+     * @throws Exception any exception thrown by the operation
+     */
+    public static void measure(final String name, final String unit,
+        final Operation operation)
+        throws Exception
+    {
+        runFor(WARMUP_NANOS, operation);
+
+        final long threadId = Thread.currentThread().getId();
+        final long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        final long units = runFor(MEASURE_NANOS, operation);
+        final long elapsed = System.nanoTime() - start;
+        final long bytes = THREADS.getThreadAllocatedBytes(threadId)
+            - bytesBefore;
+
+        System.out.println(String.format(Locale.ROOT,
+            "%-40s %10.2f ns/%s %10.2f bytes/%s", name,
+            (double) elapsed / units, unit, (double) bytes / units, unit));
+    }
+
+    private static long runFor(final long nanos, final Operation operation)
+        throws Exception
+    {
+        final long end = System.nanoTime() + nanos;
+        long units = 0L;
+
+        do {
+            units += operation.run();
+        } while (System.nanoTime() < end);
+
+        return units;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.google.common.base.Supplier;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark of parsing throughput as the number of threads grows
+ *
+ * <p>Inputs are parsed by a growing number of threads, using the per thread
+ * runners of an {@link EventBasedParseRunnerFactory} either directly or
+ * through a {@link BatchParseRunner}; the factory either shares one rule
+ * between all runners, or builds a rule for each of them. Runners use direct
+ * dispatch and have no listeners. Times are wall
+ * clock times per parse: with no contention, they decrease linearly with the
+ * number of threads, up to the number of available processors.</p>
+ *
+ * @see Benchmarks
+ */
+public final class ContentionBenchmark
+{
+    private static final int PARSES_PER_THREAD = 50;
+
+    private ContentionBenchmark()
+    {
+    }
+
+    public static void main(final String... args)
+        throws Exception
+    {
+        final String input = SampleParser.wordsInput(100);
+        final int maxThreads
+            = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        final EventBasedParseRunnerFactory<Object> shared
+            = new EventBasedParseRunnerFactory<Object>(
+            SampleParser.INSTANCE.text())
+        {
+            @Override
+            protected void configure(final EventBasedParseRunner<Object> runner)
+            {
+                runner.withDirectDispatch();
+            }
+        };
+        final EventBasedParseRunnerFactory<Object> perRunner
+            = new EventBasedParseRunnerFactory<Object>(new Supplier<Rule>()
+            {
+                @Override
+                public Rule get()
+                {
+                    return Parboiled.createParser(SampleParser.class).words();
+                }
+            })
+        {
+            @Override
+            protected void configure(final EventBasedParseRunner<Object> runner)
+            {
+                runner.withDirectDispatch();
+            }
+        };
+
+        for (int nrThreads = 1; nrThreads <= maxThreads; nrThreads *= 2) {
+            final ExecutorService executor
+                = Executors.newFixedThreadPool(nrThreads);
+            try {
+                measureRunners("shared rule, " + nrThreads + " thread(s)",
+                    shared, executor, nrThreads, input);
+                measureRunners("rule per runner, " + nrThreads + " thread(s)",
+                    perRunner, executor, nrThreads, input);
+                measureBatch("batch, " + nrThreads + " thread(s)",
+                    perRunner, executor, nrThreads, input);
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void measureRunners(final String name,
+        final EventBasedParseRunnerFactory<Object> factory,
+        final ExecutorService executor, final int nrThreads,
+        final String input)
+        throws Exception
+    {
+        final List<Callable<Void>> tasks = Collections.nCopies(nrThreads,
+            (Callable<Void>) new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                {
+                    for (int i = 0; i < PARSES_PER_THREAD; i++)
+                        factory.getRunner().run(input);
+                    return null;
+                }
+            });
+
+        Benchmarks.measure(name, "parse", new Benchmarks.Operation()
+        {
+            @Override
+            public long run()
+                throws Exception
+            {
+                for (final Future<Void> future: executor.invokeAll(tasks))
+                    future.get();
+                return (long) nrThreads * PARSES_PER_THREAD;
+            }
+        });
+    }
+
+    private static void measureBatch(final String name,
+        final EventBasedParseRunnerFactory<Object> factory,
+        final ExecutorService executor, final int nrThreads,
+        final String input)
+        throws Exception
+    {
+        final BatchParseRunner<Object> runner
+            = new BatchParseRunner<>(factory, executor);
+        final List<String> inputs = new ArrayList<>(
+            Collections.nCopies(nrThreads * PARSES_PER_THREAD, input));
+
+        Benchmarks.measure(name, "parse", new Benchmarks.Operation()
+        {
+            @Override
+            public long run()
+                throws InterruptedException
+            {
+                return runner.run(inputs).size();
+            }
+        });
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport;
+
+import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
+
+/**
+ * Benchmark of the per match cost of listener dispatch
+ *
+ * <p>The same input is parsed with no listener, then with a listener which
+ * only counts matches; events are dispatched through the {@link
+ * com.google.common.eventbus.EventBus} or directly, and are either new or
+ * {@link EventBasedParseRunner#withReusableEvents() reusable}.</p>
+ *
+ * @see Benchmarks
+ */
+public final class DispatchBenchmark
+{
+    private DispatchBenchmark()
+    {
+    }
+
+    public static void main(final String... args)
+        throws Exception
+    {
+        final String input = SampleParser.wordsInput(2000);
+
+        measure("event bus, no listener", newRunner(), input);
+        measure("event bus", withCounter(newRunner()), input);
+        measure("direct dispatch, no listener",
+            newRunner().withDirectDispatch(), input);
+        measure("direct dispatch",
+            withCounter(newRunner().withDirectDispatch()), input);
+        measure("event bus, reusable events",
+            withCounter(newRunner().withReusableEvents()), input);
+        measure("direct dispatch, reusable events",
+            withCounter(newRunner().withDirectDispatch().withReusableEvents()),
+            input);
+    }
+
+    private static EventBasedParseRunner<Object> newRunner()
+    {
+        return new EventBasedParseRunner<>(SampleParser.INSTANCE.text());
+    }
+
+    private static EventBasedParseRunner<Object> withCounter(
+        final EventBasedParseRunner<Object> runner)
+    {
+        runner.registerListener(new CountingListener());
+        return runner;
+    }
+
+    private static void measure(final String name,
+        final EventBasedParseRunner<Object> runner, final String input)
+        throws Exception
+    {
+        final CountingListener counter = new CountingListener();
+        final EventBasedParseRunner<Object> countingRunner
+            = new EventBasedParseRunner<Object>(SampleParser.INSTANCE.text())
+            .withDirectDispatch();
+        countingRunner.registerListener(counter);
+        countingRunner.run(input);
+        final long nrMatches = counter.count;
+
+        Benchmarks.measure(name, "match", new Benchmarks.Operation()
+        {
+            @Override
+            public long run()
+            {
+                runner.run(input);
+                return nrMatches;
+            }
+        });
+    }
+
+    private static final class CountingListener
+        extends ParseRunnerListener<Object>
+    {
+        private long count = 0L;
+
+        @Override
+        public void beforeMatch(final PreMatchEvent<Object> event)
+        {
+            count++;
+        }
+    }
+}
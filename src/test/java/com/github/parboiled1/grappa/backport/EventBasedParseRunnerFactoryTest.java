@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import com.google.common.base.Supplier;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+import org.parboiled.support.ParsingResult;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class EventBasedParseRunnerFactoryTest
+{
+    private static final int NR_THREADS = 4;
+    private static final int NR_RUNS = 50;
+
+    @Test
+    public void sharedRulesWithActionsAreRejected()
+    {
+        try {
+            new EventBasedParseRunnerFactory<Object>(
+                SampleParser.INSTANCE.words());
+            fail("no exception thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        new EventBasedParseRunnerFactory<Object>(SampleParser.INSTANCE.text());
+    }
+
+    @Test
+    public void runnersAreConfiguredOncePerThread()
+        throws InterruptedException, ExecutionException
+    {
+        final List<EventBasedParseRunner<Object>> configured
+            = new CopyOnWriteArrayList<>();
+        final EventBasedParseRunnerFactory<Object> factory
+            = new EventBasedParseRunnerFactory<Object>(
+            SampleParser.INSTANCE.text())
+        {
+            @Override
+            protected void configure(final EventBasedParseRunner<Object> runner)
+            {
+                configured.add(runner);
+            }
+        };
+
+        final EventBasedParseRunner<Object> runner = factory.getRunner();
+        assertSame(factory.getRunner(), runner);
+        assertEquals(configured.size(), 1);
+        assertSame(configured.get(0), runner);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final EventBasedParseRunner<Object> other = executor.submit(
+                new Callable<EventBasedParseRunner<Object>>()
+                {
+                    @Override
+                    public EventBasedParseRunner<Object> call()
+                    {
+                        return factory.getRunner();
+                    }
+                }).get();
+            assertNotSame(other, runner);
+            assertEquals(configured.size(), 2);
+            assertSame(configured.get(1), other);
+        } finally {
+            executor.shutdown();
+        }
+
+        final EventBasedParseRunner<Object> newRunner = factory.newRunner();
+        assertNotSame(newRunner, runner);
+        assertNotSame(factory.newRunner(), newRunner);
+        assertEquals(configured.size(), 4);
+        assertSame(factory.getRunner(), runner);
+    }
+
+    @Test
+    public void runnersWithTheirOwnRulesCanRunConcurrently()
+        throws InterruptedException, ExecutionException
+    {
+        final AtomicInteger nrRules = new AtomicInteger();
+        final EventBasedParseRunnerFactory<Object> factory
+            = new EventBasedParseRunnerFactory<>(new Supplier<Rule>()
+            {
+                @Override
+                public Rule get()
+                {
+                    nrRules.incrementAndGet();
+                    return Parboiled.createParser(SampleParser.class).words();
+                }
+            });
+
+        runConcurrently(factory, new Check()
+        {
+            @Override
+            public void check(final int thread, final int run)
+            {
+                final String input = SampleParser.wordsInput(thread + run);
+                final ParsingResult<Object> result
+                    = factory.getRunner().run(input);
+                assertTrue(result.matched);
+                assertEquals(result.valueStack.size(), 4 * (thread + run));
+            }
+        });
+
+        assertEquals(nrRules.get(), NR_THREADS);
+    }
+
+    @Test
+    public void runnersSharingARuleCanRunConcurrently()
+        throws InterruptedException, ExecutionException
+    {
+        final EventBasedParseRunnerFactory<Object> factory
+            = new EventBasedParseRunnerFactory<>(SampleParser.INSTANCE.sum());
+
+        runConcurrently(factory, new Check()
+        {
+            @Override
+            public void check(final int thread, final int run)
+            {
+                final String input = SampleParser.sumInput(thread + run, 3);
+                assertTrue(factory.getRunner().run(input).matched);
+                assertFalse(factory.getRunner().run(input + '+').matched);
+            }
+        });
+    }
+
+    private interface Check
+    {
+        void check(int thread, int run);
+    }
+
+    /*
+     * Run a check in several threads at once, each thread starting when all
+     * of them have their runner
+     */
+    private static void runConcurrently(
+        final EventBasedParseRunnerFactory<Object> factory, final Check check)
+        throws InterruptedException, ExecutionException
+    {
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(NR_THREADS);
+        final CountDownLatch ready = new CountDownLatch(NR_THREADS);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < NR_THREADS; i++) {
+                final int thread = i;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                        throws InterruptedException
+                    {
+                        factory.getRunner();
+                        ready.countDown();
+                        ready.await();
+                        for (int run = 0; run < NR_RUNS; run++)
+                            check.check(thread, run);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> future: futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
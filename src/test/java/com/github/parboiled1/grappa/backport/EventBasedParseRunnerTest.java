@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport;
+
+import com.github.parboiled1.grappa.backport.events.PostParseEvent;
+import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
+import com.github.parboiled1.grappa.backport.events.PreParseEvent;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.parboiled.Rule;
+import org.parboiled.support.ParsingResult;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class EventBasedParseRunnerTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    @DataProvider
+    public Iterator<Object[]> inputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { PARSER.words(), SampleParser.wordsInput(10) });
+        list.add(new Object[] { PARSER.words(), "hello 42\n" });
+        list.add(new Object[] { PARSER.sum(), SampleParser.sumInput(5, 3) });
+        list.add(new Object[] { PARSER.sum(), "1+(2-" });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "inputs")
+    public void directDispatchCallsListenersLikeTheEventBus(final Rule rule,
+        final String input)
+    {
+        final RecordingListener busListener = new RecordingListener();
+        final EventBasedParseRunner<Object> busRunner
+            = new EventBasedParseRunner<>(rule);
+        busRunner.registerListener(busListener);
+
+        final RecordingListener directListener = new RecordingListener();
+        final EventBasedParseRunner<Object> directRunner
+            = new EventBasedParseRunner<Object>(rule).withDirectDispatch();
+        directRunner.registerListener(directListener);
+
+        final ParsingResult<Object> busResult = busRunner.run(input);
+        final ParsingResult<Object> directResult = directRunner.run(input);
+
+        assertEquals(directResult.matched, busResult.matched);
+        assertEquals(directResult.valueStack.size(),
+            busResult.valueStack.size());
+        assertEquals(directListener.getEvents(), busListener.getEvents());
+        assertTrue(directListener.getNrMatches() > 0);
+    }
+
+    @Test
+    public void listenersAreCalledInRegistrationOrder()
+    {
+        final List<String> calls = new ArrayList<>();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withDirectDispatch();
+
+        for (final String name: new String[] { "first", "second" })
+            runner.registerListener(new ParseRunnerListener<Object>()
+            {
+                @Override
+                public void beforeMatch(final PreMatchEvent<Object> event)
+                {
+                    calls.add(name);
+                }
+            });
+
+        runner.run("a\n");
+
+        assertEquals(calls.subList(0, 4),
+            Arrays.asList("first", "second", "first", "second"));
+    }
+
+    @DataProvider
+    public Iterator<Object[]> dispatchModes()
+    {
+        return Arrays.asList(new Object[] { false }, new Object[] { true })
+            .iterator();
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void listenerErrorAbortsTheRun(final boolean direct)
+    {
+        final IllegalStateException failure
+            = new IllegalStateException("failure");
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        if (direct)
+            runner.withDirectDispatch();
+        runner.registerListener(recorder);
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            private int nrMatches = 0;
+
+            @Override
+            public void beforeMatch(final PreMatchEvent<Object> event)
+            {
+                if (++nrMatches == 20)
+                    throw failure;
+            }
+        });
+
+        try {
+            runner.run(SampleParser.wordsInput(10));
+            fail("no exception thrown");
+        } catch (RuntimeException e) {
+            assertTrue(Throwables.getCausalChain(e).contains(failure));
+        }
+
+        assertEquals(recorder.getNrMatches(), 20);
+        final List<String> events = recorder.getEvents();
+        assertEquals(events.get(events.size() - 1), "afterParse false");
+    }
+
+    @DataProvider
+    public Iterator<Object[]> memoInputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        for (final boolean direct: new boolean[] { false, true }) {
+            list.add(new Object[] {
+                PARSER.sum(), SampleParser.sumInput(5, 6), direct
+            });
+            list.add(new Object[] { PARSER.sum(), "1+(2-(3+", direct });
+            list.add(new Object[] {
+                PARSER.words(), SampleParser.wordsInput(10), direct
+            });
+        }
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "memoInputs")
+    public void memoizationDoesNotChangeResults(final Rule rule,
+        final String input, final boolean direct)
+    {
+        for (final int maxEntries: new int[] { 1, 64, 1 << 16 }) {
+            final EventBasedParseRunner<Object> expected
+                = new EventBasedParseRunner<>(rule);
+            final EventBasedParseRunner<Object> memoizing
+                = new EventBasedParseRunner<Object>(rule)
+                .withMemoization(maxEntries);
+            if (direct)
+                memoizing.withDirectDispatch();
+
+            final ParsingResult<Object> expectedResult = expected.run(input);
+            final ParsingResult<Object> result = memoizing.run(input);
+
+            assertEquals(result.matched, expectedResult.matched);
+            assertEquals(Lists.newArrayList(result.valueStack),
+                Lists.newArrayList(expectedResult.valueStack));
+            assertEquals(result.parseErrors.size(),
+                expectedResult.parseErrors.size());
+        }
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void memoHitsReplaceMatches(final boolean direct)
+    {
+        final String input = SampleParser.sumInput(5, 6);
+
+        final RecordingListener expected = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.sum());
+        runner.registerListener(expected);
+        runner.run(input);
+
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> memoizing
+            = new EventBasedParseRunner<Object>(PARSER.sum())
+            .withMemoization(1 << 16);
+        if (direct)
+            memoizing.withDirectDispatch();
+        memoizing.registerListener(recorder);
+
+        memoizing.run(input);
+        final int nrMatches = recorder.getNrMatches();
+        final int nrMemoHits = recorder.getNrMemoHits();
+        assertTrue(nrMemoHits > 0);
+        assertTrue(nrMatches < expected.getNrMatches() / 10,
+            nrMatches + " matches");
+
+        // The table is cleared between runs
+        memoizing.run(input);
+        assertEquals(recorder.getNrMatches(), 2 * nrMatches);
+        assertEquals(recorder.getNrMemoHits(), 2 * nrMemoHits);
+    }
+
+    @Test
+    public void listenersMayRejectMemoization()
+    {
+        final RecordingListener recorder = new RecordingListener()
+        {
+            @Override
+            public boolean supportsMemoization()
+            {
+                return false;
+            }
+        };
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.sum())
+            .withMemoization(64);
+        runner.registerListener(recorder);
+
+        try {
+            runner.run("1+2");
+            fail("no exception thrown");
+        } catch (IllegalStateException ignored) {
+        }
+
+        assertTrue(recorder.getEvents().isEmpty());
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void runsAreAbortedAfterMaxMatches(final boolean direct)
+    {
+        final String input = SampleParser.wordsInput(100);
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withMaxMatches(200L);
+        if (direct)
+            runner.withDirectDispatch();
+        runner.registerListener(recorder);
+
+        final ParseAbortedException e = abortedRun(runner, input,
+            ParseAbortedException.Reason.MAX_MATCHES, recorder);
+
+        assertEquals(recorder.getNrMatches(), 200);
+        assertTrue(e.getNrMatches() > 200L);
+        assertTrue(e.getFurthestIndex() > 0
+            && e.getFurthestIndex() < input.length());
+
+        // The budget applies to each run
+        abortedRun(runner, input, ParseAbortedException.Reason.MAX_MATCHES,
+            recorder);
+        assertEquals(recorder.getNrMatches(), 400);
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void listenerErrorsDoNotHideTheAbort(final boolean direct)
+    {
+        final IllegalStateException failure
+            = new IllegalStateException("failure");
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withMaxMatches(200L);
+        if (direct)
+            runner.withDirectDispatch();
+        runner.registerListener(recorder);
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            @Override
+            public void afterParse(final PostParseEvent<Object> event)
+            {
+                throw failure;
+            }
+        });
+
+        final ParseAbortedException e = abortedRun(runner,
+            SampleParser.wordsInput(100),
+            ParseAbortedException.Reason.MAX_MATCHES, recorder);
+
+        assertTrue(e.getNrMatches() > 200L);
+        assertEquals(e.getSuppressed().length, 1);
+        assertTrue(Throwables.getCausalChain(e.getSuppressed()[0])
+            .contains(failure));
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void runsAreAbortedAfterTimeout(final boolean direct)
+    {
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withTimeout(1L, TimeUnit.MILLISECONDS);
+        if (direct)
+            runner.withDirectDispatch();
+        runner.registerListener(recorder);
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            @Override
+            public void beforeParse(final PreParseEvent<Object> event)
+            {
+                Uninterruptibles.sleepUninterruptibly(10L,
+                    TimeUnit.MILLISECONDS);
+            }
+        });
+
+        final ParseAbortedException e = abortedRun(runner,
+            SampleParser.wordsInput(1000), ParseAbortedException.Reason.TIMEOUT,
+            recorder);
+
+        assertEquals(e.getNrMatches(), 1024L);
+    }
+
+    @Test(dataProvider = "dispatchModes")
+    public void runsAreAbortedWhenCancelled(final boolean direct)
+    {
+        final CancellationToken token = new CancellationToken();
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withCancellationToken(token);
+        if (direct)
+            runner.withDirectDispatch();
+        runner.registerListener(recorder);
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            private int nrMatches = 0;
+
+            @Override
+            public void beforeMatch(final PreMatchEvent<Object> event)
+            {
+                if (++nrMatches == 1000)
+                    token.cancel();
+            }
+        });
+
+        final ParseAbortedException e = abortedRun(runner,
+            SampleParser.wordsInput(1000),
+            ParseAbortedException.Reason.CANCELLED, recorder);
+
+        assertEquals(e.getNrMatches(), 1024L);
+
+        // Cancelled tokens abort runs before they start
+        recorder.getEvents().clear();
+        try {
+            runner.run(SampleParser.wordsInput(1));
+            fail("no exception thrown");
+        } catch (ParseAbortedException e2) {
+            assertEquals(e2.getReason(),
+                ParseAbortedException.Reason.CANCELLED);
+            assertEquals(e2.getNrMatches(), 0L);
+        }
+        assertTrue(recorder.getEvents().isEmpty());
+    }
+
+    private static ParseAbortedException abortedRun(
+        final EventBasedParseRunner<Object> runner, final String input,
+        final ParseAbortedException.Reason reason,
+        final RecordingListener recorder)
+    {
+        try {
+            runner.run(input);
+            throw new AssertionError("no exception thrown");
+        } catch (ParseAbortedException e) {
+            assertEquals(e.getReason(), reason);
+            final List<String> events = recorder.getEvents();
+            assertEquals(events.get(events.size() - 1), "afterParse false");
+            return e;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public final class MemoTableTest
+{
+    @Test
+    public void resultsAreRecordedPerMatcherAndIndex()
+    {
+        final MemoTable table = new MemoTable(64);
+
+        assertEquals(table.get(1, 0), MemoTable.ABSENT);
+        table.put(1, 0, 5);
+        table.put(2, 0, MemoTable.FAILURE);
+        table.put(1, 3, 4);
+
+        assertEquals(table.get(1, 0), 5);
+        assertEquals(table.get(2, 0), MemoTable.FAILURE);
+        assertEquals(table.get(1, 3), 4);
+        assertEquals(table.get(2, 3), MemoTable.ABSENT);
+
+        table.put(1, 0, MemoTable.FAILURE);
+        assertEquals(table.get(1, 0), MemoTable.FAILURE);
+    }
+
+    @Test
+    public void clearingForgetsAllEntries()
+    {
+        final MemoTable table = new MemoTable(64);
+
+        for (int i = 0; i < 16; i++)
+            table.put(i, i, i + 1);
+        table.clear();
+
+        for (int i = 0; i < 16; i++)
+            assertEquals(table.get(i, i), MemoTable.ABSENT);
+
+        table.put(3, 3, 10);
+        assertEquals(table.get(3, 3), 10);
+    }
+
+    @Test
+    public void fullTablesEvictEntries()
+    {
+        final MemoTable table = new MemoTable(16);
+        final Random random = new Random(0L);
+        final int nrEntries = 1000;
+        int present = 0;
+        int result;
+
+        for (int i = 0; i < nrEntries; i++)
+            table.put(i % 7, i, i + 1);
+
+        for (int i = 0; i < nrEntries; i++) {
+            result = table.get(i % 7, i);
+            if (result == MemoTable.ABSENT)
+                continue;
+            assertEquals(result, i + 1);
+            present++;
+        }
+        assertTrue(present > 0 && present <= 16, present + " entries");
+
+        for (int i = 0; i < nrEntries; i++) {
+            final int id = random.nextInt(4);
+            final int index = random.nextInt(8);
+            table.put(id, index, id * 8 + index);
+            assertEquals(table.get(id, index), id * 8 + index);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport;
+
+import com.github.parboiled1.grappa.backport.events.MatchContextEvent;
+import com.github.parboiled1.grappa.backport.events.MatchFailureEvent;
+import com.github.parboiled1.grappa.backport.events.MatchSuccessEvent;
+import com.github.parboiled1.grappa.backport.events.MemoHitEvent;
+import com.github.parboiled1.grappa.backport.events.PostParseEvent;
+import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
+import com.github.parboiled1.grappa.backport.events.PreParseEvent;
+import org.parboiled.MatcherContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A listener recording a description of each event it receives
+ *
+ * <p>Descriptions are computed when the event is received, so that this
+ * listener can be used with reusable events.</p>
+ */
+public class RecordingListener
+    extends ParseRunnerListener<Object>
+{
+    private final List<String> events = new ArrayList<>();
+    private int nrMatches = 0;
+    private int nrMemoHits = 0;
+
+    public List<String> getEvents()
+    {
+        return events;
+    }
+
+    public int getNrMatches()
+    {
+        return nrMatches;
+    }
+
+    public int getNrMemoHits()
+    {
+        return nrMemoHits;
+    }
+
+    @Override
+    public void beforeParse(final PreParseEvent<Object> event)
+    {
+        events.add("beforeParse");
+    }
+
+    @Override
+    public void beforeMatch(final PreMatchEvent<Object> event)
+    {
+        nrMatches++;
+        record("beforeMatch", event);
+    }
+
+    @Override
+    public void matchSuccess(final MatchSuccessEvent<Object> event)
+    {
+        record("matchSuccess", event);
+    }
+
+    @Override
+    public void matchFailure(final MatchFailureEvent<Object> event)
+    {
+        record("matchFailure", event);
+    }
+
+    @Override
+    public void memoHit(final MemoHitEvent<Object> event)
+    {
+        nrMemoHits++;
+        record("memoHit", event);
+    }
+
+    @Override
+    public void afterParse(final PostParseEvent<Object> event)
+    {
+        events.add("afterParse " + event.getResult().matched);
+    }
+
+    private void record(final String name,
+        final MatchContextEvent<Object> event)
+    {
+        final MatcherContext<Object> context = event.getContext();
+        events.add(name + ' ' + context.getMatcher().getLabel() + " level "
+            + context.getLevel() + " index " + context.getCurrentIndex());
+    }
+}
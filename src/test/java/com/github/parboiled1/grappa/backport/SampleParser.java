@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport;
+
+import org.parboiled.BaseParser;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+
+/**
+ * Parser used by tests and benchmarks
+ *
+ * <p>{@link #words()} runs an action for each word it matches; {@link #text()}
+ * recognizes the same language without any action. {@link #sum()} runs no
+ * action either, and backtracks over the same operands, which makes it
+ * suitable for memoization.</p>
+ */
+public class SampleParser
+    extends BaseParser<Object>
+{
+    public static final SampleParser INSTANCE
+        = Parboiled.createParser(SampleParser.class);
+
+    /*
+     * Lines of space separated words; each word is pushed on the value stack
+     */
+    public Rule words()
+    {
+        return sequence(zeroOrMore(line()), EOI);
+    }
+
+    public Rule line()
+    {
+        return sequence(zeroOrMore(firstOf(word(), ' ')), '\n');
+    }
+
+    public Rule word()
+    {
+        return sequence(oneOrMore(charRange('a', 'z')), push(match()));
+    }
+
+    /*
+     * The same language as words(), without actions
+     */
+    public Rule text()
+    {
+        return sequence(zeroOrMore(textLine()), EOI);
+    }
+
+    public Rule textLine()
+    {
+        return sequence(zeroOrMore(firstOf(oneOrMore(charRange('a', 'z')),
+            ' ')), '\n');
+    }
+
+    /*
+     * Sums and differences of numbers, possibly parenthesized
+     */
+    public Rule sum()
+    {
+        return sequence(expression(), EOI);
+    }
+
+    public Rule expression()
+    {
+        return firstOf(
+            sequence(operand(), '+', expression()),
+            sequence(operand(), '-', expression()),
+            operand()
+        );
+    }
+
+    public Rule operand()
+    {
+        return firstOf(number(), sequence('(', expression(), ')'));
+    }
+
+    public Rule number()
+    {
+        return oneOrMore(charRange('0', '9'));
+    }
+
+    /**
+     * Build an input for {@link #words()} and {@link #text()}
+     *
+     * @param nrLines the number of lines
+     * @return the input
+     */
+    public static String wordsInput(final int nrLines)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nrLines; i++)
+            sb.append("hello world foo bar\n");
+        return sb.toString();
+    }
+
+    /**
+     * Build an input for {@link #sum()}
+     *
+     * @param nrOperands the number of operands
+     * @param depth the nesting depth of the last operand
+     * @return the input
+     */
+    public static String sumInput(final int nrOperands, final int depth)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nrOperands; i++)
+            sb.append(i).append(i % 2 == 0 ? '+' : '-');
+        for (int i = 0; i < depth; i++)
+            sb.append('(');
+        sb.append(42);
+        for (int i = 0; i < depth; i++)
+            sb.append(')');
+        return sb.toString();
+    }
+}
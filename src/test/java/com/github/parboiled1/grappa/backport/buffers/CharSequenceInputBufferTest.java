@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import org.parboiled.buffers.MutableInputBuffer;
+import org.parboiled.support.Position;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_16LE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+public final class CharSequenceInputBufferTest
+{
+    private static final String INPUT = SampleParser.wordsInput(1000)
+        + "no newline at end";
+
+    @Test
+    public void adaptedBufferIsUnwrapped()
+    {
+        final InputBuffer buffer = new CharSequenceInputBuffer(INPUT);
+
+        assertSame(CharSequenceInputBuffer.fromLegacy(
+            new LegacyInputBufferAdapter(buffer)), buffer);
+    }
+
+    @DataProvider
+    @SuppressWarnings("deprecation")
+    public Iterator<Object[]> legacyBuffers()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] {
+            new org.parboiled.buffers.DefaultInputBuffer(INPUT.toCharArray())
+        });
+        list.add(new Object[] {
+            new org.parboiled.buffers.CharSequenceInputBuffer(INPUT)
+        });
+        list.add(new Object[] {
+            new MutableInputBuffer(
+                new org.parboiled.buffers.CharSequenceInputBuffer(INPUT))
+        });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "legacyBuffers")
+    public void legacyBufferContentsAreCopied(
+        final org.parboiled.buffers.InputBuffer legacyBuffer)
+    {
+        final InputBuffer buffer
+            = CharSequenceInputBuffer.fromLegacy(legacyBuffer);
+
+        assertEquals(buffer.extract(0, Integer.MAX_VALUE), INPUT);
+        assertEquals(buffer.getLineCount(), legacyBuffer.getLineCount());
+        for (int line = 1; line <= buffer.getLineCount(); line++)
+            assertEquals(buffer.extractLine(line),
+                legacyBuffer.extractLine(line));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void positionsAndLinesAreTheSameInAnyOrder()
+    {
+        final String input = LineCounterTest.randomText(10000, 0L);
+        final org.parboiled.buffers.InputBuffer expected
+            = new org.parboiled.buffers.DefaultInputBuffer(
+            input.toCharArray());
+        final InputBuffer buffer = new CharSequenceInputBuffer(input);
+        final int length = input.length();
+        final int nrLines = buffer.getLineCount();
+
+        for (int index = 0; index < length; index++)
+            checkPosition(buffer, expected, index);
+        for (int index = length - 1; index >= 0; index--)
+            checkPosition(buffer, expected, index);
+        for (int line = 1; line <= nrLines; line++)
+            assertEquals(buffer.extractLine(line), expected.extractLine(line));
+
+        final Random random = new Random(0L);
+        int line;
+        for (int n = 0; n < 1000; n++) {
+            checkPosition(buffer, expected, random.nextInt(length));
+            line = 1 + random.nextInt(nrLines);
+            assertEquals(buffer.extractLine(line), expected.extractLine(line));
+        }
+    }
+
+    @DataProvider
+    public Iterator<Object[]> codePointInputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "" });
+        list.add(new Object[] { INPUT });
+        list.add(new Object[] { "\ud83d\ude00" });
+        list.add(new Object[] { "a\ud83d\ude00b\ud83d\ude01\ud83d\ude02c" });
+        list.add(new Object[] { "unpaired high at end \ud83d" });
+        list.add(new Object[] { "\ude00 unpaired low at start" });
+        list.add(new Object[] { "a\ud83d\ud83d\ude00\ude00b" });
+        list.add(new Object[] { codePoints(5000, 0L) });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "codePointInputs")
+    public void codePointsAreTheSameAsCharacterCodePoints(final String input)
+    {
+        final CharSequenceInputBuffer buffer
+            = new CharSequenceInputBuffer(input);
+        final int length = input.length();
+
+        for (int index = 0; index < length; index++)
+            assertEquals(buffer.codePointAt(index),
+                Character.codePointAt(input, index), "index " + index);
+        assertEquals(buffer.codePointAt(length), -1);
+    }
+
+    @Test(dataProvider = "codePointInputs")
+    public void codePointIndicesAreTheSameAsCharacterCounts(
+        final String input)
+    {
+        final CharSequenceInputBuffer buffer
+            = new CharSequenceInputBuffer(input);
+        final int length = input.length();
+
+        for (int index = length; index >= 0; index--)
+            assertEquals(buffer.toCodePointIndex(index),
+                Character.codePointCount(input, 0, index), "index " + index);
+        assertEquals(buffer.toCodePointIndex(length + 10),
+            buffer.getCodePointCount());
+        assertEquals(buffer.getCodePointCount(),
+            input.codePointCount(0, length));
+    }
+
+    @DataProvider
+    public Iterator<Object[]> encodings()
+    {
+        final String large = codePoints(100000, 1L);
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "", UTF_8 });
+        list.add(new Object[] { INPUT, UTF_8 });
+        list.add(new Object[] { large, UTF_8 });
+        list.add(new Object[] { large, UTF_16LE });
+        list.add(new Object[] { large, ISO_8859_1 });
+        list.add(new Object[] { "unpaired \ud83d and \ude00", UTF_8 });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "encodings")
+    public void writtenBytesAreTheEncodedInput(final String input,
+        final Charset charset)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CharSequenceInputBuffer(input).writeTo(out, charset);
+
+        assertEquals(out.toByteArray(), input.getBytes(charset));
+    }
+
+    @Test
+    public void mappedFilesAreWrittenAsIsOrReencoded()
+        throws IOException
+    {
+        final Path directory = TempDirectories.create();
+
+        try {
+            final byte[] wellFormed = codePoints(100000, 2L).getBytes(UTF_8);
+            final byte[] malformed = {
+                'a', (byte) 0xc3, '(', (byte) 0xff, (byte) 0xc3, (byte) 0xa9
+            };
+
+            checkWrittenFile(directory, wellFormed, UTF_8, UTF_8);
+            checkWrittenFile(directory, wellFormed, UTF_8, UTF_16LE);
+            checkWrittenFile(directory, malformed, UTF_8, UTF_8);
+            checkWrittenFile(directory, malformed, ISO_8859_1, ISO_8859_1);
+            checkWrittenFile(directory, malformed, ISO_8859_1, UTF_8);
+        } finally {
+            TempDirectories.delete(directory);
+        }
+    }
+
+    private static void checkWrittenFile(final Path directory,
+        final byte[] contents, final Charset fileCharset,
+        final Charset charset)
+        throws IOException
+    {
+        final Path path = directory.resolve("input.txt");
+        Files.write(path, contents);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CharSequenceInputBuffer.fromFile(path, fileCharset)
+            .writeTo(out, charset);
+
+        assertEquals(out.toByteArray(),
+            new String(contents, fileCharset).getBytes(charset));
+    }
+
+    private static void checkPosition(final InputBuffer buffer,
+        final org.parboiled.buffers.InputBuffer expected, final int index)
+    {
+        final Position actual = buffer.getPosition(index);
+        final Position position = expected.getPosition(index);
+        assertEquals(actual.line, position.line, "line of index " + index);
+        assertEquals(actual.column, position.column,
+            "column of index " + index);
+    }
+
+    private static String codePoints(final int nrCodePoints, final long seed)
+    {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < nrCodePoints; i++)
+            sb.appendCodePoint(random.nextInt(4) == 0
+                ? 0x10000 + random.nextInt(0x1000) : 'a' + random.nextInt(26));
+
+        return sb.toString();
+    }
+}
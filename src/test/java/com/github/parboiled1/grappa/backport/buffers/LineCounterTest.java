@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.google.common.collect.Range;
+import org.parboiled.support.Position;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+
+public final class LineCounterTest
+{
+    @DataProvider
+    public static Iterator<Object[]> inputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "" });
+        list.add(new Object[] { "a" });
+        list.add(new Object[] { "\n" });
+        list.add(new Object[] { "\n\n\n" });
+        list.add(new Object[] { "a\n" });
+        list.add(new Object[] { "a\nb" });
+        list.add(new Object[] { "a\r\nbc\r\n\r\nd" });
+        list.add(new Object[] { SampleParser.wordsInput(100) });
+        list.add(new Object[] { randomText(10000, 0L) });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "inputs")
+    public void linesAreTheSameAsNaiveCount(final String input)
+    {
+        checkLines(new LineCounter(input), input);
+    }
+
+    @Test(dataProvider = "inputs")
+    public void positionsAreTheSameAsNaiveCount(final String input)
+    {
+        checkPositions(new LineCounter(input), input);
+    }
+
+    @Test(dataProvider = "inputs")
+    public void countersBuiltFromRangesAreTheSame(final String input)
+    {
+        final LineCounter counter = new LineCounter(input);
+        final List<Range<Integer>> ranges = new ArrayList<>();
+        for (int line = 1; line <= counter.getNrLines(); line++)
+            ranges.add(counter.getLineRange(line));
+
+        checkLines(new LineCounter(ranges), input);
+        checkPositions(new LineCounter(ranges), input);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> largeInputs()
+    {
+        final int chunkSize = LineCounter.CHUNK_SIZE;
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { randomText(chunkSize, 1L) });
+        list.add(new Object[] { randomText(chunkSize + 1, 2L) });
+        list.add(new Object[] { randomText(5 * chunkSize + 17, 3L) });
+        list.add(new Object[] { newlines(2 * chunkSize + 1) });
+        list.add(new Object[] { randomText(3 * chunkSize, 4L) + '\n' });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "largeInputs")
+    public void parallelCountIsTheSameAsSequentialCount(final String input)
+    {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            final LineCounter counter = new LineCounter(input, pool);
+            checkLines(counter, input);
+            checkPositions(counter, input);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void inputsWithoutNewlinesAreOneLineWhenCountedInParallel()
+    {
+        final String input = randomText(3 * LineCounter.CHUNK_SIZE, 5L)
+            .replace('\n', ' ');
+        final LineCounter counter
+            = new LineCounter(input, LineCounter.defaultPool());
+
+        assertEquals(counter.getNrLines(), 1);
+        assertEquals(counter.getLineRange(1),
+            Range.closedOpen(0, input.length()));
+    }
+
+    @Test
+    public void lookupsFromAnyLineAreTheSameAsBinarySearches()
+    {
+        final String input = randomText(2000, 6L);
+        final LineCounter counter = new LineCounter(input);
+        final int nrLines = counter.getNrLines();
+        final int[] starts = new int[nrLines + 1];
+        for (int line = 1; line <= nrLines; line++)
+            starts[line - 1] = counter.getLineRange(line).lowerEndpoint();
+        starts[nrLines] = input.length();
+
+        int line;
+        for (int from = 0; from < nrLines; from++)
+            for (int index = 0; index < input.length(); index++) {
+                line = LineCounter.findLine(starts, nrLines, from, index);
+                assertEquals(line, counter.binarySearch(index),
+                    "index " + index + " from line " + from);
+            }
+    }
+
+    @Test
+    public void concurrentLookupsAreCorrect()
+        throws InterruptedException, ExecutionException
+    {
+        final String input = randomText(100000, 7L);
+        final LineCounter counter = new LineCounter(input);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 4; i++)
+                futures.add(executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        checkPositions(counter, input);
+                    }
+                }));
+            for (final Future<?> future: futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void indicesPastTheEndAreOnTheLastLine()
+    {
+        final String input = "ab\ncd";
+        final LineCounter counter = new LineCounter(input);
+
+        for (int index = input.length(); index < input.length() + 3;
+            index++) {
+            assertEquals(counter.getLine(index), 2);
+            assertEquals(counter.getColumn(index), 3);
+            checkPosition(counter.toPosition(index), 2, 3);
+        }
+
+        assertEquals(counter.getLineRange(3), Range.closedOpen(3, 5));
+    }
+
+    static void checkLines(final LineIndex index, final String input)
+    {
+        final int[] starts = naiveLineStarts(input);
+        final int nrLines = starts.length - 1;
+
+        assertEquals(index.getNrLines(), nrLines);
+        for (int line = 1; line <= nrLines; line++)
+            assertEquals(index.getLineRange(line),
+                Range.closedOpen(starts[line - 1], starts[line]),
+                "line " + line);
+    }
+
+    static void checkPositions(final LineIndex index, final String input)
+    {
+        final int[] starts = naiveLineStarts(input);
+        final int length = input.length();
+        int line = 1;
+
+        for (int i = 0; i < length; i++) {
+            while (starts[line] <= i)
+                line++;
+            checkPosition(index, i, line, i - starts[line - 1] + 1);
+        }
+
+        line = starts.length - 1;
+        for (int i = length - 1; i >= 0; i--) {
+            while (starts[line - 1] > i)
+                line--;
+            checkPosition(index, i, line, i - starts[line - 1] + 1);
+        }
+
+        final Random random = new Random(0L);
+        int i;
+        for (int n = 0; n < 1000 && length > 0; n++) {
+            i = random.nextInt(length);
+            line = 1;
+            while (starts[line] <= i)
+                line++;
+            checkPosition(index, i, line, i - starts[line - 1] + 1);
+        }
+    }
+
+    static String randomText(final int length, final long seed)
+    {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(length);
+        int lineLength = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(40) == 0) {
+                sb.append('\n');
+                lineLength = 0;
+            } else if (lineLength > 0 && random.nextInt(200) == 0) {
+                sb.append("\r\n");
+                i++;
+                lineLength = 0;
+            } else {
+                sb.append((char) ('a' + random.nextInt(26)));
+                lineLength++;
+            }
+        }
+
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    private static String newlines(final int length)
+    {
+        final char[] chars = new char[length];
+        Arrays.fill(chars, '\n');
+        return new String(chars);
+    }
+
+    /*
+     * Start index of each line, followed by the length of the input
+     */
+    private static int[] naiveLineStarts(final String input)
+    {
+        final List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < input.length(); i++)
+            if (input.charAt(i) == '\n')
+                starts.add(i + 1);
+        starts.add(input.length());
+
+        final int[] ret = new int[starts.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = starts.get(i);
+        return ret;
+    }
+
+    private static void checkPosition(final LineIndex index, final int i,
+        final int line, final int column)
+    {
+        assertEquals(index.getLine(i), line, "line of index " + i);
+        assertEquals(index.getColumn(i), column, "column of index " + i);
+        checkPosition(index.toPosition(i), line, column);
+    }
+
+    private static void checkPosition(final Position position,
+        final int line, final int column)
+    {
+        assertEquals(position.line, line);
+        assertEquals(position.column, column);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public final class LineCountingStrategyTest
+{
+    private static final String INPUT = LineCounterTest.randomText(20000, 0L);
+
+    @DataProvider
+    public Iterator<Object[]> strategies()
+    {
+        final ExecutorService shutDown = Executors.newSingleThreadExecutor();
+        shutDown.shutdown();
+
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "eager", LineCountingStrategy.eager() });
+        list.add(new Object[] {
+            "eager, rejected",
+            LineCountingStrategy.eager(shutDown)
+        });
+        list.add(new Object[] { "lazy", LineCountingStrategy.lazy() });
+        list.add(new Object[] {
+            "incremental",
+            LineCountingStrategy.incremental()
+        });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "strategies")
+    public void strategiesGiveTheSameLines(final String name,
+        final LineCountingStrategy strategy)
+    {
+        LineCounterTest.checkLines(strategy.newIndex(INPUT), INPUT);
+    }
+
+    @Test(dataProvider = "strategies")
+    public void strategiesGiveTheSamePositions(final String name,
+        final LineCountingStrategy strategy)
+    {
+        LineCounterTest.checkPositions(strategy.newIndex(INPUT), INPUT);
+    }
+
+    @Test(dataProvider = "strategies")
+    public void strategiesGiveTheSameResultsInAnyOrder(final String name,
+        final LineCountingStrategy strategy)
+    {
+        final LineIndex expected = new LineCounter(INPUT);
+        final LineIndex index = strategy.newIndex(INPUT);
+        final Random random = new Random(1L);
+        int i;
+
+        for (int n = 0; n < 1000; n++) {
+            i = random.nextInt(INPUT.length() + 10);
+            assertEquals(index.getLine(i), expected.getLine(i));
+            assertEquals(index.getColumn(i), expected.getColumn(i));
+            i = 1 + random.nextInt(expected.getNrLines());
+            assertEquals(index.getLineRange(i), expected.getLineRange(i));
+        }
+        assertEquals(index.getNrLines(), expected.getNrLines());
+    }
+
+    @Test
+    public void eagerStrategyCountsLinesWithTheGivenExecutor()
+    {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            final CountingInput input = new CountingInput(INPUT);
+            final LineIndex index
+                = LineCountingStrategy.eager(executor).newIndex(input);
+            LineCounterTest.checkLines(index, INPUT);
+            assertEquals(input.threads.size(), 1);
+            assertFalse(input.threads.contains(Thread.currentThread()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void lazyStrategyCountsLinesOnFirstQuery()
+    {
+        final CountingInput input = new CountingInput(INPUT);
+        final LineIndex index = LineCountingStrategy.lazy().newIndex(input);
+
+        assertEquals(input.reads.get(), 0);
+        index.getLine(0);
+        assertEquals(input.reads.get(), INPUT.length());
+        index.getLine(INPUT.length() - 1);
+        assertEquals(input.reads.get(), INPUT.length());
+    }
+
+    @Test
+    public void incrementalStrategyOnlyScansWhatIsNeeded()
+    {
+        final CountingInput input = new CountingInput(INPUT);
+        final LineIndex index
+            = LineCountingStrategy.incremental().newIndex(input);
+
+        assertEquals(input.reads.get(), 0);
+        index.getLine(100);
+        final int reads = input.reads.get();
+        assertTrue(reads >= 100 && reads < INPUT.length() / 2,
+            "read " + reads + " characters");
+        index.getLine(50);
+        assertEquals(input.reads.get(), reads);
+        index.getNrLines();
+        assertEquals(input.reads.get(), INPUT.length());
+    }
+
+    private static final class CountingInput
+        implements CharSequence
+    {
+        private final String input;
+        private final AtomicInteger reads = new AtomicInteger();
+        private final List<Thread> threads = new ArrayList<>();
+
+        private CountingInput(final String input)
+        {
+            this.input = input;
+        }
+
+        @Override
+        public int length()
+        {
+            return input.length();
+        }
+
+        @Override
+        public char charAt(final int index)
+        {
+            reads.incrementAndGet();
+            final Thread thread = Thread.currentThread();
+            synchronized (threads) {
+                if (!threads.contains(thread))
+                    threads.add(thread);
+            }
+            return input.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end)
+        {
+            return input.subSequence(start, end);
+        }
+
+        @Override
+        public String toString()
+        {
+            return input;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.buffers;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import org.parboiled.support.ParsingResult;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.UTF_16;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public final class MappedFileCharSequenceTest
+{
+    private static final String[] UNICODE_PIECES = {
+        "hello ", "world\n", "\u00e9t\u00e9 ", "\u20ac ", "\u65e5\u672c ",
+        "\ud83d\ude00", "\r\n"
+    };
+
+    private static final String[] LATIN1_PIECES = {
+        "hello ", "world\n", "\u00e9t\u00e9 ", "\u00ff\u00a0", "\r\n"
+    };
+
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> texts()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { "", UTF_8 });
+        list.add(new Object[] { "x", UTF_8 });
+        list.add(new Object[] { SampleParser.wordsInput(100), UTF_8 });
+        list.add(new Object[] { SampleParser.wordsInput(100), US_ASCII });
+        list.add(new Object[] { text(UNICODE_PIECES, 1), UTF_8 });
+        list.add(new Object[] { text(UNICODE_PIECES, 1000), UTF_8 });
+        list.add(new Object[] { text(LATIN1_PIECES, 1000), ISO_8859_1 });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "texts")
+    public void contentIsTheDecodedFile(final String text,
+        final Charset charset)
+        throws IOException
+    {
+        final MappedFileCharSequence sequence
+            = open(text.getBytes(charset), charset);
+
+        assertEquals(sequence.getCharset(), charset);
+        assertEquals(sequence.getByteLength(), text.getBytes(charset).length);
+        assertEquals(sequence.length(), text.length());
+        assertEquals(sequence.toString(), text);
+    }
+
+    @Test(dataProvider = "texts")
+    public void randomAccessesMatchTheDecodedFile(final String text,
+        final Charset charset)
+        throws IOException
+    {
+        final MappedFileCharSequence sequence
+            = open(text.getBytes(charset), charset);
+        final int length = text.length();
+        final Random random = new Random(0L);
+
+        for (int i = length - 1; i >= 0; i--)
+            assertEquals(sequence.charAt(i), text.charAt(i), "index " + i);
+
+        int start, end;
+        for (int i = 0; i < 200 && length > 0; i++) {
+            start = random.nextInt(length);
+            end = start + random.nextInt(length - start + 1);
+            assertEquals(sequence.charAt(start), text.charAt(start));
+            assertEquals(sequence.subSequence(start, end).toString(),
+                text.substring(start, end));
+        }
+    }
+
+    @Test
+    public void malformedUtf8IsReplacedOneByteAtATime()
+        throws IOException
+    {
+        final byte[] bytes = {
+            'a', (byte) 0xc3, '(', (byte) 0xe2, (byte) 0x82, 'b',
+            (byte) 0xff, (byte) 0xc3, (byte) 0xa9
+        };
+        final MappedFileCharSequence sequence = open(bytes, UTF_8);
+
+        assertEquals(sequence.toString(),
+            "a\ufffd(\ufffd\ufffdb\ufffd\u00e9");
+        assertEquals(sequence.charAt(7), '\u00e9');
+    }
+
+    @Test
+    public void multiByteCharsetsOtherThanUtf8AreRejected()
+        throws IOException
+    {
+        try {
+            open("hello".getBytes(UTF_16), UTF_16);
+            fail("no exception thrown");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void parsingAMappedFileIsLikeParsingAString()
+        throws IOException
+    {
+        final String text = SampleParser.wordsInput(20);
+        final Path path = directory.resolve("input.txt");
+        Files.write(path, text.getBytes(UTF_8));
+
+        final ParsingResult<Object> expected
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words())
+            .run(text);
+        final ParsingResult<Object> actual
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words())
+            .run(new LegacyInputBufferAdapter(
+                CharSequenceInputBuffer.fromFile(path, UTF_8)));
+
+        assertEquals(actual.isSuccess(), expected.isSuccess());
+        assertEquals(actual.getValueStack().size(),
+            expected.getValueStack().size());
+        while (!expected.getValueStack().isEmpty())
+            assertEquals(actual.getValueStack().pop(),
+                expected.getValueStack().pop());
+    }
+
+    private MappedFileCharSequence open(final byte[] bytes,
+        final Charset charset)
+        throws IOException
+    {
+        final Path path = directory.resolve("input.txt");
+        Files.write(path, bytes);
+        return MappedFileCharSequence.open(path, charset);
+    }
+
+    private static String text(final String[] pieces, final int nrPieces)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nrPieces; i++)
+            sb.append(pieces[i % pieces.length]);
+        return sb.toString();
+    }
+}
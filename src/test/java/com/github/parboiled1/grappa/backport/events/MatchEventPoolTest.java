@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.github.parboiled1.grappa.backport.events;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.ParseRunnerListener;
+import com.github.parboiled1.grappa.backport.RecordingListener;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import org.parboiled.Rule;
+import org.parboiled.support.ParsingResult;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+
+public final class MatchEventPoolTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    @DataProvider
+    public Iterator<Object[]> inputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        for (final boolean direct: new boolean[] { false, true }) {
+            list.add(new Object[] { direct, PARSER.words(),
+                SampleParser.wordsInput(10) });
+            list.add(new Object[] { direct, PARSER.sum(),
+                SampleParser.sumInput(5, 3) });
+            // Deep enough for the pool to grow
+            list.add(new Object[] { direct, PARSER.sum(),
+                SampleParser.sumInput(2, 9) });
+        }
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "inputs")
+    public void reusableEventsGiveTheSameCallbacks(final boolean direct,
+        final Rule rule, final String input)
+    {
+        final RecordingListener expected = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(rule);
+        runner.registerListener(expected);
+
+        final RecordingListener actual = new RecordingListener();
+        final EventBasedParseRunner<Object> reusingRunner
+            = new EventBasedParseRunner<Object>(rule).withReusableEvents();
+        if (direct)
+            reusingRunner.withDirectDispatch();
+        reusingRunner.registerListener(actual);
+
+        final ParsingResult<Object> expectedResult = runner.run(input);
+        final ParsingResult<Object> actualResult = reusingRunner.run(input);
+
+        assertEquals(actualResult.matched, expectedResult.matched);
+        assertEquals(actualResult.valueStack.size(),
+            expectedResult.valueStack.size());
+        assertEquals(actual.getEvents(), expected.getEvents());
+    }
+
+    @Test
+    public void eventsAreReusedPerLevel()
+    {
+        final Set<PreMatchEvent<Object>> events
+            = Collections.newSetFromMap(
+                new IdentityHashMap<PreMatchEvent<Object>, Boolean>());
+        final Set<Integer> levels = new HashSet<>();
+
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.words())
+            .withReusableEvents().withDirectDispatch();
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            @Override
+            public void beforeMatch(final PreMatchEvent<Object> event)
+            {
+                events.add(event);
+                levels.add(event.getContext().getLevel());
+            }
+        });
+
+        runner.run(SampleParser.wordsInput(10));
+        runner.run(SampleParser.wordsInput(10));
+
+        assertEquals(events.size(), levels.size());
+    }
+}
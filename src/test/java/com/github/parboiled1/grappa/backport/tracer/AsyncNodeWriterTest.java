@@ -0,0 +1,361 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.ParseRunnerListener;
+import com.github.parboiled1.grappa.backport.RecordingListener;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import com.github.parboiled1.grappa.backport.events.PreMatchEvent;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class AsyncNodeWriterTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @Test
+    public void asyncTraceEqualsSynchronousTrace()
+        throws IOException
+    {
+        final String input = SampleParser.wordsInput(50);
+        final Path syncZip = directory.resolve("sync.zip");
+        final Path asyncZip = directory.resolve("async.zip");
+
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(syncZip, false));
+        runner.run(input);
+
+        runner = new EventBasedParseRunner<>(PARSER.words());
+        // A small buffer, so that the parser has to wait for the writer
+        runner.registerListener(new TracingListener<>(asyncZip, false)
+            .withAsyncWriter(4, Backpressure.BLOCK));
+        runner.run(input);
+
+        final Trace sync = Trace.read(syncZip);
+        final Trace async = Trace.read(asyncZip);
+        async.checkTree();
+
+        assertEquals(async.getInfoField(Trace.DROPPED), 0);
+        assertEquals(withoutTimes(async.nodes), withoutTimes(sync.nodes));
+    }
+
+    @Test
+    public void droppedNodesAreReportedSeparately()
+        throws IOException
+    {
+        final Path zip = directory.resolve("trace.zip");
+        final RecordingListener recorder = new RecordingListener();
+        final TracingListener<Object> listener
+            = new TracingListener<>(zip, false)
+            .withAsyncWriter(1, Backpressure.DROP);
+
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(listener);
+        runner.registerListener(recorder);
+        runner.run(SampleParser.wordsInput(50));
+
+        final Trace trace = Trace.read(zip);
+        final long dropped = listener.getDroppedNodes();
+
+        assertEquals(trace.getInfoField(Trace.NR_NODES), trace.nodes.size());
+        assertEquals(trace.getInfoField(Trace.DROPPED), dropped);
+        assertEquals(trace.nodes.size() + dropped, recorder.getNrMatches());
+    }
+
+    @Test
+    public void nodesAreDroppedWhenTheBufferIsFull()
+        throws IOException, InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CollectingWriter delegate = new CollectingWriter(release);
+        final AsyncNodeWriter writer
+            = new AsyncNodeWriter(delegate, 4, Backpressure.DROP);
+
+        // The first node blocks the delegate until released, so the buffer
+        // can hold four nodes at most
+        for (int i = 0; i < 10; i++)
+            writer.write(-1, i, 0, true, 0, 0, 0, 0L);
+        release.countDown();
+        writer.close();
+
+        assertEquals(writer.getDropped(), 6L);
+        assertEquals(delegate.nodeIds.size(), 4);
+        assertTrue(delegate.closed);
+    }
+
+    @Test
+    public void blockedProducerParksUntilThereIsRoom()
+        throws IOException, InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CollectingWriter delegate = new CollectingWriter(release);
+        final AsyncNodeWriter writer
+            = new AsyncNodeWriter(delegate, 4, Backpressure.BLOCK);
+        final Thread producer = Thread.currentThread();
+
+        final Thread releaser = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final long end = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(10L);
+                while (producer.getState() != Thread.State.WAITING
+                    && System.nanoTime() < end)
+                    Thread.yield();
+                release.countDown();
+            }
+        });
+        releaser.start();
+
+        for (int i = 0; i < 10; i++)
+            writer.write(-1, i, 0, true, 0, 0, 0, 0L);
+        writer.close();
+        releaser.join();
+
+        assertEquals(writer.getDropped(), 0L);
+        assertEquals(delegate.nodeIds.size(), 10);
+        for (int i = 0; i < 10; i++)
+            assertEquals(delegate.nodeIds.get(i).intValue(), i);
+    }
+
+    @Test
+    public void idleWriterThreadIsParked()
+        throws IOException, InterruptedException
+    {
+        final Set<Thread> before = writerThreads();
+        final AsyncNodeWriter writer = new AsyncNodeWriter(
+            new CollectingWriter(new CountDownLatch(0)), 16,
+            Backpressure.BLOCK);
+        writer.write(-1, 0, 0, true, 0, 0, 0, 0L);
+        writer.flush();
+
+        final Set<Thread> writers = writerThreads();
+        writers.removeAll(before);
+        assertEquals(writers.size(), 1);
+        final Thread thread = writers.iterator().next();
+
+        try {
+            final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Thread.sleep(100L);
+            final long cpuBefore = threads.getThreadCpuTime(thread.getId());
+            Thread.sleep(500L);
+            final long cpu = threads.getThreadCpuTime(thread.getId())
+                - cpuBefore;
+
+            assertEquals(thread.getState(), Thread.State.TIMED_WAITING);
+            assertTrue(cpu < TimeUnit.MILLISECONDS.toNanos(10L),
+                cpu + " ns of CPU time while idle");
+        } finally {
+            writer.close();
+        }
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void writerFailureIsRethrownOnClose()
+        throws IOException
+    {
+        final IOException failure = new IOException("failure");
+        final AsyncNodeWriter writer
+            = new AsyncNodeWriter(new FailingWriter(failure), 4,
+            Backpressure.DROP);
+
+        writer.write(-1, 0, 0, true, 0, 0, 0, 0L);
+
+        try {
+            writer.close();
+            fail("no exception thrown");
+        } catch (IOException e) {
+            assertSame(e, failure);
+        }
+    }
+
+    @Test
+    public void writerThreadStopsWhenTheRunFails()
+        throws IOException, InterruptedException
+    {
+        final Set<Thread> before = writerThreads();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(
+            directory.resolve("trace.zip"), false)
+            .withAsyncWriter(16, Backpressure.BLOCK));
+        runner.registerListener(new ParseRunnerListener<Object>()
+        {
+            private int nrMatches = 0;
+
+            @Override
+            public void beforeMatch(final PreMatchEvent<Object> event)
+            {
+                if (++nrMatches == 100)
+                    throw new IllegalStateException("failure");
+            }
+        });
+
+        try {
+            runner.run(SampleParser.wordsInput(50));
+            fail("no exception thrown");
+        } catch (RuntimeException ignored) {
+            // expected
+        }
+
+        final Set<Thread> after = writerThreads();
+        after.removeAll(before);
+        assertEquals(after, new HashSet<Thread>());
+    }
+
+    @Test
+    public void writerThreadStopsWhenTheProducerDies()
+        throws InterruptedException
+    {
+        final Set<Thread> before = writerThreads();
+        final Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final AsyncNodeWriter writer = new AsyncNodeWriter(
+                    new CollectingWriter(new CountDownLatch(0)), 16,
+                    Backpressure.BLOCK);
+                try {
+                    writer.write(-1, 0, 0, true, 0, 0, 0, 0L);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                // The writer is never closed
+            }
+        });
+        producer.start();
+        producer.join();
+
+        final Set<Thread> writers = writerThreads();
+        writers.removeAll(before);
+        for (final Thread thread: writers) {
+            thread.join(TimeUnit.SECONDS.toMillis(10L));
+            assertTrue(!thread.isAlive(), "writer thread still running");
+        }
+    }
+
+    private static Set<Thread> writerThreads()
+    {
+        final Set<Thread> ret = new HashSet<>();
+        for (final Thread thread: Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("trace-writer-")
+                && thread.isAlive())
+                ret.add(thread);
+        return ret;
+    }
+
+    private static List<String> withoutTimes(final List<Trace.Node> nodes)
+    {
+        final List<String> ret = new ArrayList<>(nodes.size());
+        for (final Trace.Node node: nodes)
+            ret.add(node.withoutTime());
+        return ret;
+    }
+
+    private static final class CollectingWriter
+        implements NodeWriter
+    {
+        private final CountDownLatch release;
+        private final List<Integer> nodeIds = new ArrayList<>();
+        private boolean closed = false;
+
+        private CollectingWriter(final CountDownLatch release)
+        {
+            this.release = release;
+        }
+
+        @Override
+        public void write(final int parentId, final int nodeId,
+            final int level, final boolean success, final int matcherId,
+            final int startIndex, final int endIndex, final long time)
+            throws IOException
+        {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            nodeIds.add(nodeId);
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+    private static final class FailingWriter
+        implements NodeWriter
+    {
+        private final IOException failure;
+
+        private FailingWriter(final IOException failure)
+        {
+            this.failure = failure;
+        }
+
+        @Override
+        public void write(final int parentId, final int nodeId,
+            final int level, final boolean success, final int matcherId,
+            final int startIndex, final int endIndex, final long time)
+            throws IOException
+        {
+            throw failure;
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
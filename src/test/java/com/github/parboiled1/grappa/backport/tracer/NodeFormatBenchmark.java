@@ -0,0 +1,145 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.Benchmarks;
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmark of the standard node formats
+ *
+ * <p>The nodes of a real trace are encoded with each format, and the encoded
+ * data discarded; the benchmark reports the time and bytes allocated per node,
+ * then the size per node of the node entry in a trace file, before and after
+ * compression.</p>
+ *
+ * @see Benchmarks
+ */
+public final class NodeFormatBenchmark
+{
+    private NodeFormatBenchmark()
+    {
+    }
+
+    public static void main(final String... args)
+        throws Exception
+    {
+        final String input = SampleParser.wordsInput(2000);
+        final Path directory = TempDirectories.create();
+
+        try {
+            final Path zip = directory.resolve("trace.zip");
+            trace(zip, input, StandardNodeFormat.CSV);
+            final List<Trace.Node> nodes = Trace.read(zip).nodes;
+
+            for (final StandardNodeFormat format: StandardNodeFormat.values())
+                measureWrites(format, nodes);
+
+            for (final StandardNodeFormat format:
+                StandardNodeFormat.values()) {
+                trace(zip, input, format);
+                printSize(zip, format, nodes.size());
+            }
+        } finally {
+            TempDirectories.delete(directory);
+        }
+    }
+
+    private static void trace(final Path zip, final String input,
+        final NodeFormat format)
+        throws IOException
+    {
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(SampleParser.INSTANCE.words())
+            .withDirectDispatch();
+        runner.registerListener(new TracingListener<>(zip, true)
+            .withNodeFormat(format));
+        runner.run(input);
+    }
+
+    private static void measureWrites(final NodeFormat format,
+        final List<Trace.Node> nodes)
+        throws Exception
+    {
+        final int size = nodes.size();
+        final int[] fields = new int[size * 7];
+        final long[] times = new long[size];
+
+        Trace.Node node;
+        for (int i = 0; i < size; i++) {
+            node = nodes.get(i);
+            fields[i * 7] = node.parentId;
+            fields[i * 7 + 1] = node.id;
+            fields[i * 7 + 2] = node.level;
+            fields[i * 7 + 3] = node.success ? 1 : 0;
+            fields[i * 7 + 4] = node.matcherId;
+            fields[i * 7 + 5] = node.startIndex;
+            fields[i * 7 + 6] = node.endIndex;
+            times[i] = node.time;
+        }
+
+        Benchmarks.measure("write " + format, "node", new Benchmarks.Operation()
+        {
+            @Override
+            public long run()
+                throws IOException
+            {
+                final NodeWriter writer = format.newWriter(new NullChannel());
+                for (int i = 0; i < size; i++)
+                    writer.write(fields[i * 7], fields[i * 7 + 1],
+                        fields[i * 7 + 2], fields[i * 7 + 3] != 0,
+                        fields[i * 7 + 4], fields[i * 7 + 5],
+                        fields[i * 7 + 6], times[i]);
+                writer.close();
+                return size;
+            }
+        });
+    }
+
+    private static void printSize(final Path zip, final NodeFormat format,
+        final int nrNodes)
+        throws IOException
+    {
+        try (
+            final ZipFile zipFile = new ZipFile(zip.toFile());
+        ) {
+            final ZipEntry entry = zipFile.getEntry(format.getEntryName());
+            System.out.println(String.format(Locale.ROOT,
+                "%-40s %10.2f bytes/node %10.2f compressed bytes/node",
+                "size " + format, (double) entry.getSize() / nrNodes,
+                (double) entry.getCompressedSize() / nrNodes));
+        }
+    }
+
+    private static final class NullChannel
+        implements WritableByteChannel
+    {
+        @Override
+        public int write(final ByteBuffer src)
+        {
+            final int ret = src.remaining();
+            src.position(src.limit());
+            return ret;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public final class NodeFormatTest
+{
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> formats()
+    {
+        final List<Object[]> list = new ArrayList<>();
+        for (final StandardNodeFormat format: StandardNodeFormat.values())
+            list.add(new Object[] { format });
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "formats")
+    public void nodesRoundTrip(final StandardNodeFormat format)
+        throws IOException
+    {
+        final Random random = new Random(42L);
+        final List<Trace.Node> nodes = new ArrayList<>();
+
+        nodes.add(new Trace.Node(-1, 0, 0, true, 0, 0, Integer.MAX_VALUE,
+            Long.MAX_VALUE));
+        nodes.add(new Trace.Node(0, 1, 1, false, 0, 0, 0, 0L));
+        // Enough nodes to fill the write buffer several times
+        for (int i = 0; i < 10000; i++) {
+            final int startIndex = random.nextInt(1 << 20);
+            nodes.add(new Trace.Node(random.nextInt(i + 2), i + 2,
+                random.nextInt(1000), random.nextBoolean(),
+                random.nextInt(1 << 16), startIndex,
+                startIndex + random.nextInt(1000),
+                random.nextLong() & Long.MAX_VALUE));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final NodeWriter writer = format.newWriter(Channels.newChannel(out));
+        for (final Trace.Node node: nodes)
+            writer.write(node.parentId, node.id, node.level, node.success,
+                node.matcherId, node.startIndex, node.endIndex, node.time);
+        writer.close();
+
+        assertEquals(Trace.readNodes(format, out.toByteArray()).toString(),
+            nodes.toString());
+    }
+
+    @Test
+    public void binaryTraceHasTheSameNodesAsCsvTrace()
+        throws IOException
+    {
+        final Path csvZip = directory.resolve("csv.zip");
+        final Path binaryZip = directory.resolve("binary.zip");
+        final String input = SampleParser.wordsInput(20);
+
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+        runner.registerListener(new TracingListener<>(csvZip, false));
+        runner.run(input);
+
+        runner = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+        runner.registerListener(new TracingListener<>(binaryZip, false)
+            .withNodeFormat(StandardNodeFormat.BINARY));
+        runner.run(input);
+
+        final Trace csv = Trace.read(csvZip);
+        final Trace binary = Trace.read(binaryZip);
+
+        assertEquals(csv.getInfoField(Trace.VERSION),
+            StandardNodeFormat.CSV.getVersion());
+        assertEquals(binary.getInfoField(Trace.VERSION),
+            StandardNodeFormat.BINARY.getVersion());
+        assertEquals(binary.matchers, csv.matchers);
+        assertEquals(withoutTimes(binary.nodes), withoutTimes(csv.nodes));
+    }
+
+    private static List<String> withoutTimes(final List<Trace.Node> nodes)
+    {
+        final String[] ret = new String[nodes.size()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = nodes.get(i).withoutTime();
+        return Arrays.asList(ret);
+    }
+}
@@ -0,0 +1,191 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public final class ProfilingListenerTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    /*
+     * Fields of report lines
+     */
+    private static final int INVOCATIONS = 4;
+    private static final int SUCCESSES = 5;
+    private static final int FAILURES = 6;
+    private static final int TOTAL_NANOS = 7;
+    private static final int SELF_NANOS = 8;
+    private static final int CONSUMED_CHARS = 9;
+
+    @Test
+    public void statisticsMatchTheTraceOfTheSameRun()
+        throws IOException
+    {
+        final Path directory = TempDirectories.create();
+
+        try {
+            final Path zip = directory.resolve("trace.zip");
+            final ProfilingListener<Object> profiler
+                = new ProfilingListener<>();
+            // No EOI, whose end index is capped in traces
+            final EventBasedParseRunner<Object> runner
+                = new EventBasedParseRunner<>(PARSER.expression());
+            runner.registerListener(profiler);
+            runner.registerListener(new TracingListener<>(zip, false));
+            runner.run(SampleParser.sumInput(10, 3));
+
+            final Trace trace = Trace.read(zip);
+            final List<String[]> report = report(profiler);
+            assertEquals(report.size(), trace.matchers.size());
+
+            final long[] invocations = new long[report.size()];
+            final long[] successes = new long[report.size()];
+            final long[] consumed = new long[report.size()];
+
+            for (final Trace.Node node: trace.nodes) {
+                invocations[node.matcherId]++;
+                if (node.success) {
+                    successes[node.matcherId]++;
+                    consumed[node.matcherId]
+                        += node.endIndex - node.startIndex;
+                }
+            }
+
+            String[] line;
+            for (int id = 0; id < report.size(); id++) {
+                line = report.get(id);
+                assertEquals(line[3], trace.getMatcherName(
+                    new Trace.Node(-1, 0, 0, true, id, 0, 0, 0L)));
+                assertEquals(field(line, INVOCATIONS), invocations[id]);
+                assertEquals(field(line, SUCCESSES), successes[id]);
+                assertEquals(field(line, FAILURES),
+                    invocations[id] - successes[id]);
+                assertEquals(field(line, CONSUMED_CHARS), consumed[id]);
+            }
+        } finally {
+            TempDirectories.delete(directory);
+        }
+    }
+
+    @Test
+    public void selfTimesAddUpToTheTimeOfTheRootMatcher()
+        throws IOException
+    {
+        final ProfilingListener<Object> profiler = new ProfilingListener<>();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(profiler);
+        runner.run(SampleParser.wordsInput(20));
+
+        final List<String[]> report = report(profiler);
+        long selfNanos = 0L;
+        for (final String[] line: report) {
+            assertTrue(field(line, SELF_NANOS) <= field(line, TOTAL_NANOS));
+            selfNanos += field(line, SELF_NANOS);
+        }
+
+        // The root matcher has id 0
+        assertEquals(field(report.get(0), INVOCATIONS), 1L);
+        assertEquals(selfNanos, field(report.get(0), TOTAL_NANOS));
+    }
+
+    @Test
+    public void mergedStatisticsEqualThoseOfSequentialRuns()
+        throws IOException
+    {
+        final String[] inputs = {
+            SampleParser.wordsInput(3), "hello 42\n", SampleParser.wordsInput(7)
+        };
+
+        final ProfilingListener<Object> sequential
+            = new ProfilingListener<>();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(sequential);
+        for (final String input: inputs)
+            runner.run(input);
+
+        final ProfilingListener<Object> merged = new ProfilingListener<>();
+        for (final String input: inputs) {
+            // Each run uses its own rule instances
+            final Rule rule
+                = Parboiled.createParser(SampleParser.class).words();
+            final ProfilingListener<Object> profiler
+                = new ProfilingListener<>();
+            final EventBasedParseRunner<Object> r
+                = new EventBasedParseRunner<>(rule);
+            r.registerListener(profiler);
+            r.run(input);
+            merged.merge(profiler);
+        }
+
+        assertEquals(counts(report(merged)), counts(report(sequential)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void statisticsOfDifferentGrammarsCannotBeMerged()
+    {
+        final ProfilingListener<Object> words = new ProfilingListener<>();
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(words);
+        runner.run("hello\n");
+
+        final ProfilingListener<Object> sum = new ProfilingListener<>();
+        runner = new EventBasedParseRunner<>(PARSER.sum());
+        runner.registerListener(sum);
+        runner.run("1+2");
+
+        words.merge(sum);
+    }
+
+    private static List<String[]> report(
+        final ProfilingListener<Object> profiler)
+        throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        profiler.writeReport(sb);
+
+        final List<String[]> ret = new ArrayList<>();
+        for (final String line: sb.toString().split("\n")) {
+            // Labels may contain semicolons; numbers are the last six fields
+            final String[] fields = line.split(";");
+            final int extra = fields.length - 10;
+            final String[] normalized = new String[10];
+            System.arraycopy(fields, 0, normalized, 0, 3);
+            final StringBuilder label = new StringBuilder(fields[3]);
+            for (int i = 0; i < extra; i++)
+                label.append(';').append(fields[4 + i]);
+            normalized[3] = label.toString();
+            System.arraycopy(fields, 4 + extra, normalized, 4, 6);
+            ret.add(normalized);
+        }
+        return ret;
+    }
+
+    private static long field(final String[] line, final int index)
+    {
+        return Long.parseLong(line[index]);
+    }
+
+    private static List<String> counts(final List<String[]> report)
+    {
+        final List<String> ret = new ArrayList<>();
+        for (final String[] line: report)
+            ret.add(line[3] + ' ' + line[INVOCATIONS] + ' ' + line[SUCCESSES]
+                + ' ' + line[CONSUMED_CHARS]);
+        return ret;
+    }
+}
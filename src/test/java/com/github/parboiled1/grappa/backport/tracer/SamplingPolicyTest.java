@@ -0,0 +1,172 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import com.google.common.base.Predicate;
+import org.parboiled.matchers.Matcher;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+public final class SamplingPolicyTest
+{
+    private static final String INPUT = SampleParser.wordsInput(10)
+        + "hello 42\n";
+
+    private static final Predicate<Matcher> WORDS = new Predicate<Matcher>()
+    {
+        @Override
+        public boolean apply(final Matcher input)
+        {
+            return "word".equals(input.getLabel());
+        }
+    };
+
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @Test
+    public void maxLevelOnlyRecordsUpperLevels()
+        throws IOException
+    {
+        final Trace full = trace("full.zip", SamplingPolicy.traceAll());
+        final Trace sampled
+            = trace("sampled.zip", SamplingPolicy.traceAll().maxLevel(3));
+        sampled.checkTree();
+
+        final List<Trace.Node> nodes = full.inPreorder();
+        final boolean[] kept = new boolean[nodes.size()];
+        for (final Trace.Node node: nodes)
+            kept[node.id] = node.level <= 3;
+
+        assertEquals(shapes(sampled.inPreorder()), shapes(nodes, kept));
+    }
+
+    @Test
+    public void subtreesAreRecordedWithTheirAncestors()
+        throws IOException
+    {
+        final Trace full = trace("full.zip", SamplingPolicy.traceAll());
+        final Trace sampled = trace("sampled.zip",
+            SamplingPolicy.traceAll().subtreesMatching(WORDS));
+        sampled.checkTree();
+
+        assertEquals(shapes(sampled.inPreorder()),
+            shapes(full.inPreorder(), subtreesAndAncestors(full, 100)));
+    }
+
+    @Test
+    public void criteriaCanBeCombined()
+        throws IOException
+    {
+        final Trace full = trace("full.zip", SamplingPolicy.traceAll());
+        final Trace sampled = trace("sampled.zip",
+            SamplingPolicy.traceAll().subtreesMatching(WORDS).maxLevel(4));
+        sampled.checkTree();
+
+        assertEquals(shapes(sampled.inPreorder()),
+            shapes(full.inPreorder(), subtreesAndAncestors(full, 4)));
+    }
+
+    @Test
+    public void onlyOneRunInNIsTraced()
+        throws IOException
+    {
+        final SamplingPolicy policy
+            = SamplingPolicy.traceAll().everyNthParse(2);
+
+        try (
+            final TraceArchive archive
+                = new TraceArchive(directory.resolve("archive.zip"), false);
+        ) {
+            final TracingListener<Object> listener
+                = new TracingListener<>(archive).withSamplingPolicy(policy);
+            final EventBasedParseRunner<Object> runner
+                = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+            runner.registerListener(listener);
+            for (int i = 0; i < 5; i++)
+                runner.run(INPUT);
+
+            assertEquals(archive.getNrParses(), 3);
+        }
+    }
+
+    private Trace trace(final String name, final SamplingPolicy policy)
+        throws IOException
+    {
+        final Path zip = directory.resolve(name);
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+        runner.registerListener(new TracingListener<>(zip, false)
+            .withSamplingPolicy(policy));
+        runner.run(INPUT);
+        return Trace.read(zip);
+    }
+
+    /*
+     * Nodes of word subtrees up to the given level, and their ancestors
+     */
+    private static boolean[] subtreesAndAncestors(final Trace trace,
+        final int maxLevel)
+    {
+        final List<Trace.Node> nodes = trace.inPreorder();
+        final boolean[] inSubtree = new boolean[nodes.size()];
+        final boolean[] kept = new boolean[nodes.size()];
+
+        for (final Trace.Node node: nodes) {
+            inSubtree[node.id] = "word".equals(trace.getMatcherName(node))
+                || node.parentId != -1 && inSubtree[node.parentId];
+            if (!inSubtree[node.id] || node.level > maxLevel)
+                continue;
+            for (int id = node.id; id != -1 && !kept[id];
+                id = nodes.get(id).parentId)
+                kept[id] = true;
+        }
+
+        return kept;
+    }
+
+    private static List<String> shapes(final List<Trace.Node> nodes)
+    {
+        final boolean[] all = new boolean[nodes.size()];
+        for (int i = 0; i < all.length; i++)
+            all[i] = true;
+        return shapes(nodes, all);
+    }
+
+    /*
+     * Everything but ids and times
+     */
+    private static List<String> shapes(final List<Trace.Node> nodes,
+        final boolean[] kept)
+    {
+        final List<String> ret = new ArrayList<>();
+        for (final Trace.Node node: nodes)
+            if (kept[node.id])
+                ret.add(node.level + " " + node.success + ' '
+                    + node.matcherId + ' ' + node.startIndex + ' '
+                    + node.endIndex);
+        return ret;
+    }
+}
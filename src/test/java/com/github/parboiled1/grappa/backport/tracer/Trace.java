@@ -0,0 +1,278 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * The contents of the trace of one parsing run, as read back by tests
+ */
+final class Trace
+{
+    /*
+     * Fields of info.csv
+     */
+    static final int NR_LEVELS = 1;
+    static final int NR_MATCHERS = 2;
+    static final int NR_LINES = 3;
+    static final int NR_CHARS = 4;
+    static final int NR_CODE_POINTS = 5;
+    static final int NR_NODES = 6;
+    static final int VERSION = 7;
+    static final int DROPPED = 8;
+    static final int INPUT_HASH = 9;
+    static final int INPUT_LENGTH = 10;
+
+    final List<String> info;
+    final List<String> matchers;
+    final List<Node> nodes;
+
+    private Trace(final List<String> info, final List<String> matchers,
+        final List<Node> nodes)
+    {
+        this.info = info;
+        this.matchers = matchers;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Read a trace file
+     *
+     * @param path the path to the trace file
+     * @return the trace
+     * @throws IOException failed to read the file
+     */
+    static Trace read(final Path path)
+        throws IOException
+    {
+        try (
+            final ZipFile zip = new ZipFile(path.toFile());
+        ) {
+            return read(zip, "", readLines(zip, "matchers.csv"));
+        }
+    }
+
+    static Trace read(final ZipFile zip, final String prefix,
+        final List<String> matchers)
+        throws IOException
+    {
+        final List<String> info
+            = Arrays.asList(readLines(zip, prefix + "info.csv").get(0)
+            .split(";"));
+
+        final StandardNodeFormat format
+            = zip.getEntry(prefix + StandardNodeFormat.BINARY.getEntryName())
+            != null ? StandardNodeFormat.BINARY : StandardNodeFormat.CSV;
+        assertEquals(Integer.parseInt(info.get(VERSION)), format.getVersion());
+        final List<Node> nodes = readNodes(format,
+            readEntry(zip, prefix + format.getEntryName()));
+
+        return new Trace(info, matchers, nodes);
+    }
+
+    /**
+     * Decode nodes written in one of the standard formats
+     *
+     * @param format the format
+     * @param data the encoded nodes
+     * @return the nodes
+     */
+    static List<Node> readNodes(final StandardNodeFormat format,
+        final byte[] data)
+    {
+        final List<Node> nodes = new ArrayList<>();
+
+        if (format == StandardNodeFormat.CSV) {
+            final String text = new String(data, StandardCharsets.US_ASCII);
+            if (!text.isEmpty())
+                for (final String line: text.split("\n"))
+                    nodes.add(Node.parse(line));
+            return nodes;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        int nodeId = 0;
+        int startIndex = 0;
+
+        while (buffer.hasRemaining()) {
+            nodeId += unzigzag(readVarLong(buffer));
+            final int parentId = nodeId - unzigzag(readVarLong(buffer));
+            final int level = (int) readVarLong(buffer);
+            final int matcher = (int) readVarLong(buffer);
+            startIndex += unzigzag(readVarLong(buffer));
+            final int endIndex = startIndex + unzigzag(readVarLong(buffer));
+            final long time = readVarLong(buffer);
+            nodes.add(new Node(parentId, nodeId, level, (matcher & 1) != 0,
+                matcher >>> 1, startIndex, endIndex, time));
+        }
+
+        return nodes;
+    }
+
+    private static long readVarLong(final ByteBuffer buffer)
+    {
+        long ret = 0L;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = buffer.get();
+            ret |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return ret;
+    }
+
+    private static int unzigzag(final long n)
+    {
+        final int i = (int) n;
+        return i >>> 1 ^ -(i & 1);
+    }
+
+    static List<String> readLines(final ZipFile zip, final String name)
+        throws IOException
+    {
+        final String text = new String(readEntry(zip, name),
+            StandardCharsets.UTF_8);
+        if (text.isEmpty())
+            return Collections.emptyList();
+        return Arrays.asList(text.split("\n"));
+    }
+
+    static byte[] readEntry(final ZipFile zip, final String name)
+        throws IOException
+    {
+        final ZipEntry entry = zip.getEntry(name);
+        assertNotNull(entry, "no entry named " + name);
+        try (
+            final InputStream in = zip.getInputStream(entry);
+        ) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    int getInfoField(final int index)
+    {
+        return Integer.parseInt(info.get(index));
+    }
+
+    String getMatcherName(final Node node)
+    {
+        final String line = matchers.get(node.matcherId);
+        int index = 0;
+        for (int i = 0; i < 3; i++)
+            index = line.indexOf(';', index) + 1;
+        return line.substring(index);
+    }
+
+    /**
+     * Check that nodes form a tree: ids are dense, and in preorder; each node
+     * but the root has a parent one level above it
+     */
+    void checkTree()
+    {
+        final Node[] byId = new Node[nodes.size()];
+        for (final Node node: nodes) {
+            assertTrue(node.id >= 0 && node.id < byId.length,
+                "id out of range: " + node);
+            byId[node.id] = node;
+        }
+
+        final List<Node> path = new ArrayList<>();
+        for (final Node node: byId) {
+            if (node.parentId == -1) {
+                assertEquals(node.id, 0, "more than one root node");
+                assertEquals(node.level, 0);
+                path.add(node);
+                continue;
+            }
+            while (!path.isEmpty()
+                && path.get(path.size() - 1).id != node.parentId)
+                path.remove(path.size() - 1);
+            assertTrue(!path.isEmpty(), "not in preorder: " + node);
+            assertEquals(node.level, path.get(path.size() - 1).level + 1,
+                "wrong level: " + node);
+            path.add(node);
+        }
+    }
+
+    /**
+     * Return the nodes sorted by id
+     *
+     * @return the nodes
+     */
+    List<Node> inPreorder()
+    {
+        final Node[] byId = new Node[nodes.size()];
+        for (final Node node: nodes)
+            byId[node.id] = node;
+        return Arrays.asList(byId);
+    }
+
+    static final class Node
+    {
+        final int parentId;
+        final int id;
+        final int level;
+        final boolean success;
+        final int matcherId;
+        final int startIndex;
+        final int endIndex;
+        final long time;
+
+        Node(final int parentId, final int id, final int level,
+            final boolean success, final int matcherId, final int startIndex,
+            final int endIndex, final long time)
+        {
+            this.parentId = parentId;
+            this.id = id;
+            this.level = level;
+            this.success = success;
+            this.matcherId = matcherId;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.time = time;
+        }
+
+        static Node parse(final String line)
+        {
+            final String[] fields = line.split(";");
+            assertEquals(fields.length, 8, "wrong node line: " + line);
+            return new Node(Integer.parseInt(fields[0]),
+                Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                "1".equals(fields[3]), Integer.parseInt(fields[4]),
+                Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                Long.parseLong(fields[7]));
+        }
+
+        /*
+         * All fields but the time, which differs from one run to the next
+         */
+        String withoutTime()
+        {
+            return parentId + ";" + id + ';' + level + ';' + (success ? 1 : 0)
+                + ';' + matcherId + ';' + startIndex + ';' + endIndex;
+        }
+
+        @Override
+        public String toString()
+        {
+            return withoutTime() + ';' + time;
+        }
+    }
+}
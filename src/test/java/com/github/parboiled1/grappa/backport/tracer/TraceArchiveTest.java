@@ -0,0 +1,231 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import com.google.common.base.Joiner;
+import org.parboiled.Parboiled;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class TraceArchiveTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    private Path directory;
+    private Path zip;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+        zip = directory.resolve("archive.zip");
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @Test
+    public void archiveHasOneTracePerRun()
+        throws IOException
+    {
+        final int nrRuns = 5;
+
+        try (
+            final TraceArchive archive = new TraceArchive(zip, false);
+        ) {
+            final EventBasedParseRunner<Object> runner
+                = new EventBasedParseRunner<>(PARSER.words());
+            runner.registerListener(new TracingListener<>(archive));
+            for (int i = 0; i < nrRuns; i++)
+                runner.run(SampleParser.wordsInput(i + 1));
+            assertEquals(archive.getNrParses(), nrRuns);
+        }
+
+        try (
+            final ZipFile file = new ZipFile(zip.toFile());
+        ) {
+            final List<String> matchers
+                = Trace.readLines(file, "matchers.csv");
+            final List<String> index = Trace.readLines(file, "index.csv");
+            assertEquals(index.size(), nrRuns);
+
+            for (int i = 0; i < nrRuns; i++) {
+                final String prefix = "parses/" + i + '/';
+                assertNull(file.getEntry(prefix + "matchers.csv"));
+                assertNotNull(file.getEntry(prefix + "input.txt"));
+
+                final Trace trace = Trace.read(file, prefix, matchers);
+                trace.checkTree();
+                assertEquals(index.get(i),
+                    i + ";" + Joiner.on(';').join(trace.info));
+                assertEquals(trace.getInfoField(Trace.NR_CHARS),
+                    SampleParser.wordsInput(i + 1).length());
+                assertEquals(withoutTimes(trace.nodes),
+                    withoutTimes(singleTrace(SampleParser.wordsInput(i + 1))));
+            }
+        }
+    }
+
+    @Test
+    public void runsOfOtherGrammarsHaveTheirOwnMatchers()
+        throws IOException
+    {
+        try (
+            final TraceArchive archive = new TraceArchive(zip, false);
+        ) {
+            final TracingListener<Object> listener
+                = new TracingListener<>(archive);
+            EventBasedParseRunner<Object> runner
+                = new EventBasedParseRunner<>(PARSER.words());
+            runner.registerListener(listener);
+            runner.run(SampleParser.wordsInput(1));
+
+            runner = new EventBasedParseRunner<>(PARSER.sum());
+            runner.registerListener(listener);
+            runner.run(SampleParser.sumInput(2, 2));
+        }
+
+        try (
+            final ZipFile file = new ZipFile(zip.toFile());
+        ) {
+            assertNull(file.getEntry("parses/0/matchers.csv"));
+            final List<String> matchers
+                = Trace.readLines(file, "parses/1/matchers.csv");
+            assertFalse(matchers.equals(Trace.readLines(file, "matchers.csv")));
+            Trace.read(file, "parses/1/", matchers).checkTree();
+        }
+    }
+
+    @Test
+    public void listenersCanWriteConcurrently()
+        throws IOException, InterruptedException, ExecutionException
+    {
+        final int nrThreads = 4;
+        final int nrRuns = 10;
+        final ExecutorService executor
+            = Executors.newFixedThreadPool(nrThreads);
+        final List<Future<?>> futures = new ArrayList<>();
+
+        try (
+            final TraceArchive archive = new TraceArchive(zip, false);
+        ) {
+            for (int i = 0; i < nrThreads; i++) {
+                final int thread = i;
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        final EventBasedParseRunner<Object> runner
+                            = new EventBasedParseRunner<>(Parboiled
+                            .createParser(SampleParser.class).words());
+                        runner.registerListener(
+                            new TracingListener<>(archive));
+                        for (int run = 0; run < nrRuns; run++)
+                            runner.run(SampleParser.wordsInput(
+                                thread * nrRuns + run));
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> future: futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        try (
+            final ZipFile file = new ZipFile(zip.toFile());
+        ) {
+            final List<String> matchers
+                = Trace.readLines(file, "matchers.csv");
+            final List<String> index = Trace.readLines(file, "index.csv");
+            final Set<Integer> lengths = new HashSet<>();
+            assertEquals(index.size(), nrThreads * nrRuns);
+
+            for (int i = 0; i < nrThreads * nrRuns; i++) {
+                assertTrue(index.get(i).startsWith(i + ";"));
+                final String prefix = "parses/" + i + '/';
+                assertNull(file.getEntry(prefix + "matchers.csv"));
+                final Trace trace = Trace.read(file, prefix, matchers);
+                trace.checkTree();
+                lengths.add(trace.getInfoField(Trace.NR_CHARS));
+            }
+
+            for (int i = 0; i < nrThreads * nrRuns; i++)
+                assertTrue(lengths.contains(
+                    SampleParser.wordsInput(i).length()));
+        }
+    }
+
+    @Test
+    public void closedArchivesRejectRuns()
+        throws IOException
+    {
+        final TraceArchive archive = new TraceArchive(zip, false);
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(archive));
+        runner.run(SampleParser.wordsInput(1));
+        archive.close();
+
+        try {
+            runner.run(SampleParser.wordsInput(1));
+            fail("no exception thrown");
+        } catch (RuntimeException ignored) {
+        }
+
+        assertEquals(archive.getNrParses(), 1);
+        try (
+            final ZipFile file = new ZipFile(zip.toFile());
+        ) {
+            assertEquals(Trace.readLines(file, "index.csv").size(), 1);
+        }
+    }
+
+    private List<Trace.Node> singleTrace(final String input)
+        throws IOException
+    {
+        final Path path = directory.resolve("single.zip");
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(path, true));
+        runner.run(input);
+        return Trace.read(path).nodes;
+    }
+
+    private static List<String> withoutTimes(final List<Trace.Node> nodes)
+    {
+        final List<String> ret = new ArrayList<>();
+        for (final Trace.Node node: nodes)
+            ret.add(node.withoutTime());
+        return ret;
+    }
+}
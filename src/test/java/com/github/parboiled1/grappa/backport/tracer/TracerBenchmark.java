@@ -0,0 +1,75 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.Benchmarks;
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.RecordingListener;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * Benchmark of the per match cost of tracing
+ *
+ * <p>The same input is parsed without any listener, then with a {@link
+ * TracingListener}, using direct dispatch and reusable events; most of the
+ * cost of tracing is that of compressing the trace file.</p>
+ *
+ * @see Benchmarks
+ */
+public final class TracerBenchmark
+{
+    private TracerBenchmark()
+    {
+    }
+
+    public static void main(final String... args)
+        throws Exception
+    {
+        final String input = SampleParser.wordsInput(2000);
+        final Path directory = TempDirectories.create();
+
+        try {
+            final Path zip = directory.resolve("trace.zip");
+            measure("no listener", input, null, 0);
+            measure("tracing", input, zip, Deflater.DEFAULT_COMPRESSION);
+            measure("tracing, no compression", input, zip,
+                Deflater.NO_COMPRESSION);
+        } finally {
+            TempDirectories.delete(directory);
+        }
+    }
+
+    private static void measure(final String name, final String input,
+        @Nullable final Path zip, final int compressionLevel)
+        throws Exception
+    {
+        final RecordingListener counter = new RecordingListener();
+        final EventBasedParseRunner<Object> countingRunner
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.text());
+        countingRunner.registerListener(counter);
+        countingRunner.run(input);
+        final long nrMatches = counter.getNrMatches();
+
+        Benchmarks.measure(name, "match", new Benchmarks.Operation()
+        {
+            @Override
+            public long run()
+                throws IOException
+            {
+                final EventBasedParseRunner<Object> runner
+                    = new EventBasedParseRunner<Object>(
+                        SampleParser.INSTANCE.text())
+                    .withDirectDispatch().withReusableEvents();
+                if (zip != null)
+                    runner.registerListener(new TracingListener<Object>(zip,
+                        true).withCompressionLevel(compressionLevel));
+                runner.run(input);
+                return nrMatches;
+            }
+        });
+    }
+}
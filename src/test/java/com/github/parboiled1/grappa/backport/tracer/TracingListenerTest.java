@@ -0,0 +1,290 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.RecordingListener;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import com.github.parboiled1.grappa.backport.buffers.CharSequenceInputBuffer;
+import com.github.parboiled1.grappa.backport.buffers.LegacyInputBufferAdapter;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.Hashing;
+import org.parboiled.Rule;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public final class TracingListenerTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    private Path directory;
+    private Path zip;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+        zip = directory.resolve("trace.zip");
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @DataProvider
+    public Iterator<Object[]> inputs()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { PARSER.words(), SampleParser.wordsInput(5) });
+        list.add(new Object[] { PARSER.sum(), SampleParser.sumInput(3, 2) });
+        list.add(new Object[] { PARSER.sum(), "1+(2-" });
+        // Deeper than the initial size of the level stacks
+        list.add(new Object[] { PARSER.sum(), SampleParser.sumInput(1, 9) });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "inputs")
+    public void traceHasOneNodePerMatch(final Rule rule, final String input)
+        throws IOException
+    {
+        final RecordingListener recorder = new RecordingListener();
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(rule);
+        runner.registerListener(new TracingListener<>(zip, false));
+        runner.registerListener(recorder);
+        runner.run(input);
+
+        final Trace trace = Trace.read(zip);
+        trace.checkTree();
+
+        final List<String> expected = new ArrayList<>();
+        final Deque<Integer> open = new ArrayDeque<>();
+        int maxLevel = 0;
+
+        for (final String event: recorder.getEvents()) {
+            if (event.startsWith("beforeMatch ")) {
+                open.push(expected.size());
+                expected.add(event.substring("beforeMatch ".length()));
+            } else if (event.startsWith("matchSuccess ")) {
+                // EOI matches past the end of the input
+                final int index = event.lastIndexOf(' ') + 1;
+                final int endIndex = Math.min(input.length(),
+                    Integer.parseInt(event.substring(index)));
+                final int id = open.pop();
+                expected.set(id, expected.get(id) + ' '
+                    + event.substring(0, index) + endIndex);
+            } else if (event.startsWith("matchFailure ")) {
+                final int id = open.pop();
+                expected.set(id, expected.get(id) + ' ' + event);
+            }
+        }
+
+        final List<String> actual = new ArrayList<>();
+        for (final Trace.Node node: trace.inPreorder()) {
+            maxLevel = Math.max(maxLevel, node.level);
+            actual.add(trace.getMatcherName(node) + " level " + node.level
+                + " index " + node.startIndex + ' '
+                + (node.success ? "matchSuccess " : "matchFailure ")
+                + trace.getMatcherName(node) + " level " + node.level
+                + " index " + node.endIndex);
+        }
+
+        assertEquals(actual, expected);
+        assertEquals(trace.getInfoField(Trace.NR_NODES), actual.size());
+        assertEquals(trace.getInfoField(Trace.NR_LEVELS), maxLevel + 1);
+        assertEquals(trace.getInfoField(Trace.NR_CHARS), input.length());
+    }
+
+    @Test
+    public void traceFileIsCreatedWhenTheRunStarts()
+        throws IOException
+    {
+        final TracingListener<Object> listener
+            = new TracingListener<>(zip, false);
+        assertFalse(Files.exists(zip));
+
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(listener);
+        runner.run(SampleParser.wordsInput(2));
+
+        Trace.read(zip).checkTree();
+    }
+
+    @Test
+    public void secondRunIsRejectedAndFirstTraceKept()
+        throws IOException
+    {
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(zip, false));
+        runner.run(SampleParser.wordsInput(2));
+        final List<Trace.Node> nodes = Trace.read(zip).nodes;
+
+        try {
+            runner.run(SampleParser.wordsInput(3));
+            fail("no exception thrown");
+        } catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e),
+                Predicates.instanceOf(IllegalStateException.class)));
+        }
+
+        assertEquals(Trace.read(zip).nodes.toString(), nodes.toString());
+    }
+
+    @Test
+    public void existingFileIsOnlyReplacedOnRequest()
+        throws IOException
+    {
+        final byte[] contents = { 'x' };
+        Files.write(zip, contents);
+
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(zip, false));
+
+        try {
+            runner.run(SampleParser.wordsInput(2));
+            fail("no exception thrown");
+        } catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e),
+                Predicates.instanceOf(FileAlreadyExistsException.class)));
+        }
+        assertEquals(Files.readAllBytes(zip), contents);
+
+        runner = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(zip, true));
+        runner.run(SampleParser.wordsInput(2));
+
+        Trace.read(zip).checkTree();
+    }
+
+    @Test
+    public void traceHasTheInputText()
+        throws IOException
+    {
+        final String text = SampleParser.wordsInput(5)
+            + "\u00e9t\u00e9 \ud83d\ude00\n";
+        final Path input = directory.resolve("input.txt");
+        Files.write(input, text.getBytes(UTF_8));
+
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(zip, false));
+        runner.run(new LegacyInputBufferAdapter(
+            CharSequenceInputBuffer.fromFile(input, UTF_8)));
+
+        try (
+            final ZipFile file = new ZipFile(zip.toFile());
+        ) {
+            assertEquals(Trace.readEntry(file, "input.txt"),
+                Files.readAllBytes(input));
+        }
+
+        final Path other = directory.resolve("other.zip");
+        runner = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(other, false));
+        runner.run(text);
+
+        try (
+            final ZipFile file = new ZipFile(other.toFile());
+        ) {
+            assertEquals(Trace.readEntry(file, "input.txt"),
+                text.getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void tracesOfTheSameInputShareTheStoredInput()
+        throws IOException
+    {
+        final Path store = directory.resolve("inputs");
+        final String text = SampleParser.wordsInput(5) + "\u00e9t\u00e9\n";
+        final byte[] bytes = text.getBytes(UTF_8);
+        final String hash = Hashing.sha256().hashBytes(bytes).toString();
+
+        for (final String name: Arrays.asList("1.zip", "2.zip")) {
+            final EventBasedParseRunner<Object> runner
+                = new EventBasedParseRunner<>(PARSER.words());
+            runner.registerListener(new TracingListener<>(
+                directory.resolve(name), false).withInputStore(store));
+            runner.run(text);
+
+            try (
+                final ZipFile file
+                    = new ZipFile(directory.resolve(name).toFile());
+            ) {
+                assertNull(file.getEntry("input.txt"));
+            }
+
+            final Trace trace = Trace.read(directory.resolve(name));
+            assertEquals(trace.info.get(Trace.INPUT_HASH), hash);
+            assertEquals(trace.getInfoField(Trace.INPUT_LENGTH), bytes.length);
+        }
+
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(PARSER.words());
+        runner.registerListener(new TracingListener<>(
+            directory.resolve("3.zip"), false).withInputStore(store));
+        runner.run(SampleParser.wordsInput(2));
+
+        final List<Path> stored = new ArrayList<>();
+        try (
+            final DirectoryStream<Path> entries
+                = Files.newDirectoryStream(store);
+        ) {
+            for (final Path entry: entries)
+                stored.add(entry.getFileName());
+        }
+        assertEquals(stored.size(), 2);
+        assertTrue(stored.contains(store.getFileSystem().getPath(hash)));
+        assertEquals(Files.readAllBytes(store.resolve(hash)), bytes);
+    }
+
+    @Test
+    public void memoizingRunnersRejectTracing()
+        throws IOException
+    {
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(PARSER.sum())
+            .withMemoization(64);
+        runner.registerListener(new TracingListener<>(zip, false));
+
+        try {
+            runner.run("1+2");
+            fail("no exception thrown");
+        } catch (IllegalStateException ignored) {
+        }
+
+        assertFalse(Files.exists(zip));
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.parboiled1.grappa.backport.tracer;
+
+import com.github.parboiled1.grappa.backport.EventBasedParseRunner;
+import com.github.parboiled1.grappa.backport.ParseAbortedException;
+import com.github.parboiled1.grappa.backport.RecordingListener;
+import com.github.parboiled1.grappa.backport.SampleParser;
+import com.github.parboiled1.grappa.backport.TempDirectories;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public final class WindowNodeWriterTest
+{
+    private static final String INPUT = SampleParser.wordsInput(20);
+
+    private Path directory;
+
+    @BeforeMethod
+    public void createDirectory()
+        throws IOException
+    {
+        directory = TempDirectories.create();
+    }
+
+    @AfterMethod
+    public void deleteDirectory()
+        throws IOException
+    {
+        TempDirectories.delete(directory);
+    }
+
+    @Test
+    public void windowHoldsTheMostRecentNodes()
+        throws IOException
+    {
+        final Path fullZip = directory.resolve("full.zip");
+        final Path windowZip = directory.resolve("window.zip");
+
+        EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+        runner.registerListener(new TracingListener<>(fullZip, false));
+        runner.run(INPUT);
+
+        runner = new EventBasedParseRunner<>(SampleParser.INSTANCE.words());
+        runner.registerListener(new TracingListener<>(windowZip, false)
+            .withNodeWindow(50));
+        runner.run(INPUT);
+
+        final List<Trace.Node> nodes = Trace.read(fullZip).nodes;
+        final Trace window = Trace.read(windowZip);
+        window.checkTree();
+
+        assertEquals(window.getInfoField(Trace.NR_NODES), 50);
+        assertEquals(shapes(window.nodes),
+            shapes(nodes.subList(nodes.size() - 50, nodes.size())));
+    }
+
+    @Test
+    public void abortedRunKeepsTheAncestorsOfAllNodes()
+        throws IOException
+    {
+        final Path fullZip = directory.resolve("full.zip");
+        final Path windowZip = directory.resolve("window.zip");
+
+        final RecordingListener recorder = new RecordingListener();
+        abortedRun(new TracingListener<>(fullZip, false), recorder);
+        abortedRun(new TracingListener<>(windowZip, false).withNodeWindow(30),
+            new RecordingListener());
+
+        // Unfinished nodes are written as failures when the run ends
+        final Trace full = Trace.read(fullZip);
+        full.checkTree();
+        assertEquals(full.nodes.size(), recorder.getNrMatches());
+
+        final Trace window = Trace.read(windowZip);
+        window.checkTree();
+        assertEquals(shapes(window.nodes), shapes(
+            full.nodes.subList(full.nodes.size() - 30, full.nodes.size())));
+    }
+
+    @Test
+    public void nodesWithADroppedParentBecomeRoots()
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WindowNodeWriter writer = new WindowNodeWriter(
+            StandardNodeFormat.CSV.newWriter(Channels.newChannel(out)), 10);
+
+        writer.write(2, 3, 2, true, 0, 0, 0, 0L);
+        // Node 2 was dropped
+        writer.write(0, 1, 1, true, 0, 0, 0, 0L);
+        writer.write(-1, 0, 0, true, 0, 0, 0, 0L);
+        writer.close();
+
+        final List<String> parents = new ArrayList<>();
+        for (final Trace.Node node:
+            Trace.readNodes(StandardNodeFormat.CSV, out.toByteArray()))
+            parents.add(node.parentId + " " + node.id);
+
+        assertEquals(parents.toString(), "[-1 2, 0 1, -1 0]");
+    }
+
+    private static void abortedRun(final TracingListener<Object> listener,
+        final RecordingListener recorder)
+    {
+        final EventBasedParseRunner<Object> runner
+            = new EventBasedParseRunner<Object>(SampleParser.INSTANCE.words())
+            .withMaxMatches(200L);
+        runner.registerListener(listener);
+        runner.registerListener(recorder);
+
+        try {
+            runner.run(INPUT);
+            fail("no exception thrown");
+        } catch (ParseAbortedException ignored) {
+            // expected
+        }
+    }
+
+    /*
+     * Everything but ids and times
+     */
+    private static List<String> shapes(final List<Trace.Node> nodes)
+    {
+        final List<String> ret = new ArrayList<>();
+        for (final Trace.Node node: nodes)
+            ret.add(node.level + " " + node.success + ' ' + node.matcherId
+                + ' ' + node.startIndex + ' ' + node.endIndex);
+        return ret;
+    }
+}
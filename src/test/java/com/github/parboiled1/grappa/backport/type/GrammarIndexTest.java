@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.type;
+
+import com.github.parboiled1.grappa.backport.SampleParser;
+import org.parboiled.BaseParser;
+import org.parboiled.Parboiled;
+import org.parboiled.Rule;
+import org.parboiled.matchers.Matcher;
+import org.parboiled.matchers.ProxyMatcher;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+public final class GrammarIndexTest
+{
+    private static final SampleParser PARSER = SampleParser.INSTANCE;
+
+    @DataProvider
+    public Iterator<Object[]> rules()
+    {
+        final List<Object[]> list = new ArrayList<>();
+
+        list.add(new Object[] { PARSER.words() });
+        list.add(new Object[] { PARSER.text() });
+        list.add(new Object[] { PARSER.sum() });
+
+        return list.iterator();
+    }
+
+    @Test(dataProvider = "rules")
+    public void idsAreDenseAndRoundTrip(final Rule rule)
+    {
+        final GrammarIndex index = GrammarIndex.of(rule);
+        final int size = index.size();
+
+        assertSame(index.getMatcher(0), rule);
+        for (int id = 0; id < size; id++) {
+            assertEquals(index.getId(index.getMatcher(id)), id);
+            assertFalse(index.getMatcher(id) instanceof ProxyMatcher);
+        }
+        assertEquals(index.getId((Matcher) Parboiled
+            .createParser(SampleParser.class).number()), -1);
+    }
+
+    @Test(dataProvider = "rules")
+    public void allReachableMatchersAreIndexed(final Rule rule)
+    {
+        final GrammarIndex index = GrammarIndex.of(rule);
+        final Set<Matcher> reachable = reachable((Matcher) rule);
+
+        assertEquals(index.size(), reachable.size());
+        for (final Matcher matcher: reachable)
+            assertTrue(index.getId(matcher) >= 0, matcher.toString());
+    }
+
+    @Test(dataProvider = "rules")
+    public void idsOnlyDependOnTheGrammarStructure(final Rule rule)
+    {
+        final GrammarIndex index = GrammarIndex.of(rule);
+        final SampleParser parser = Parboiled.createParser(SampleParser.class);
+        final GrammarIndex other = GrammarIndex.of(rule == PARSER.words()
+            ? parser.words() : rule == PARSER.text() ? parser.text()
+            : parser.sum());
+
+        assertNotSame(other, index);
+        assertEquals(other.size(), index.size());
+        for (int id = 0; id < index.size(); id++) {
+            assertEquals(other.getMatcher(id).getLabel(),
+                index.getMatcher(id).getLabel());
+            assertEquals(other.getType(id), index.getType(id));
+        }
+    }
+
+    @Test
+    public void typesAreThoseOfTheProvider()
+    {
+        final GrammarIndex index = GrammarIndex.of(PARSER.words());
+        final MatcherTypeProvider provider = MatcherTypeProvider.getDefault();
+
+        for (int id = 0; id < index.size(); id++)
+            assertEquals(index.getType(id),
+                provider.getType(index.getMatcher(id).getClass()));
+    }
+
+    @Test
+    public void matchersLeadingToActionsHaveActions()
+    {
+        final GrammarIndex words = GrammarIndex.of(PARSER.words());
+        final GrammarIndex text = GrammarIndex.of(PARSER.text());
+
+        assertTrue(words.hasActions(0));
+        assertTrue(words.hasActions(words.getId((Matcher) PARSER.line())));
+        assertFalse(words.hasActions(words.getId((Matcher) BaseParser.EOI)));
+
+        for (int id = 0; id < words.size(); id++)
+            if (words.getType(id) == MatcherType.ACTION)
+                assertTrue(words.hasActions(id));
+        for (int id = 0; id < text.size(); id++)
+            assertFalse(text.hasActions(id));
+    }
+
+    @Test
+    public void indicesAreCachedPerRule()
+    {
+        final Rule rule = PARSER.words();
+        final GrammarIndex index = GrammarIndex.of(rule);
+
+        assertSame(GrammarIndex.of(rule), index);
+        assertNotSame(GrammarIndex.of(PARSER.text()), index);
+        assertNotSame(
+            new GrammarIndex(rule, MatcherTypeProvider.getDefault()), index);
+    }
+
+    private static Set<Matcher> reachable(final Matcher root)
+    {
+        final Set<Matcher> ret = Collections.newSetFromMap(
+            new IdentityHashMap<Matcher, Boolean>());
+        final List<Matcher> queue = new ArrayList<>();
+        queue.add(root);
+
+        Matcher matcher;
+        while (!queue.isEmpty()) {
+            matcher = queue.remove(queue.size() - 1);
+            while (matcher instanceof ProxyMatcher)
+                matcher = ProxyMatcher.unwrap(matcher);
+            if (ret.add(matcher))
+                queue.addAll(matcher.getChildren());
+        }
+
+        return ret;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Francis Galiegue <fgaliegue@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.parboiled1.grappa.backport.type;
+
+import org.parboiled.Rule;
+import org.parboiled.matchers.AbstractMatcher;
+import org.parboiled.matchers.ActionMatcher;
+import org.parboiled.matchers.FirstOfMatcher;
+import org.parboiled.matchers.Matcher;
+import org.parboiled.matchers.SequenceMatcher;
+import org.parboiled.matchers.StringMatcher;
+import org.parboiled.matchers.TestNotMatcher;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+public final class MatcherTypeProviderTest
+{
+    @Test
+    public void defaultProviderKnowsParboiledMatchers()
+    {
+        final MatcherTypeProvider provider = MatcherTypeProvider.getDefault();
+
+        assertEquals(provider.getType(SequenceMatcher.class),
+            MatcherType.COMPOSITE);
+        assertEquals(provider.getType(FirstOfMatcher.class),
+            MatcherType.COMPOSITE);
+        assertEquals(provider.getType(StringMatcher.class),
+            MatcherType.TERMINAL);
+        assertEquals(provider.getType(ActionMatcher.class),
+            MatcherType.ACTION);
+        assertEquals(provider.getType(TestNotMatcher.class),
+            MatcherType.PREDICATE);
+    }
+
+    @Test
+    public void subclassesHaveTheTypeOfTheirSuperclass()
+    {
+        assertEquals(MatcherTypeProvider.getDefault()
+            .getType(MySequenceMatcher.class), MatcherType.COMPOSITE);
+    }
+
+    @Test
+    public void unknownClassesAreRejected()
+    {
+        checkUnknown(new MatcherTypeProvider(), MyMatcher.class);
+    }
+
+    @Test
+    public void lateRegistrationsTakeEffect()
+    {
+        final MyTypeProvider provider = new MyTypeProvider();
+
+        checkUnknown(provider, MyMatcher.class);
+        assertEquals(provider.getType(MySequenceMatcher.class),
+            MatcherType.COMPOSITE);
+
+        provider.register(MyMatcher.class, MatcherType.TERMINAL);
+        provider.register(MySequenceMatcher.class, MatcherType.PREDICATE);
+
+        assertEquals(provider.getType(MyMatcher.class), MatcherType.TERMINAL);
+        assertEquals(provider.getType(MySequenceMatcher.class),
+            MatcherType.PREDICATE);
+        assertEquals(provider.getType(SequenceMatcher.class),
+            MatcherType.COMPOSITE);
+        checkUnknown(new MatcherTypeProvider(), MyMatcher.class);
+    }
+
+    private static void checkUnknown(final MatcherTypeProvider provider,
+        final Class<? extends Matcher> c)
+    {
+        try {
+            provider.getType(c);
+            fail("no exception thrown");
+        } catch (RuntimeException e) {
+            assertEquals(e.getMessage(), "cannot determine matcher type for "
+                + c + "; please extend MatcherTypeProvider and register this"
+                + " class");
+        }
+    }
+
+    private static final class MyTypeProvider
+        extends MatcherTypeProvider
+    {
+        private void register(final Class<? extends Matcher> c,
+            final MatcherType type)
+        {
+            addMatcherClass(c, type);
+        }
+    }
+
+    private abstract static class MyMatcher
+        extends AbstractMatcher
+    {
+        private MyMatcher()
+        {
+            super("my");
+        }
+    }
+
+    private static final class MySequenceMatcher
+        extends SequenceMatcher
+    {
+        private MySequenceMatcher()
+        {
+            super(new Rule[0]);
+        }
+    }
+}